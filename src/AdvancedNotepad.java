@@ -1,20 +1,100 @@
 import javax.imageio.ImageIO;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
+import javax.swing.event.CaretEvent;
+import javax.swing.event.CaretListener;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.MenuEvent;
+import javax.swing.event.MenuListener;
 import javax.swing.filechooser.FileNameExtensionFilter;
+import javax.swing.plaf.basic.BasicTextAreaUI;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.AttributeSet;
 import javax.swing.text.BadLocationException;
+import javax.swing.text.Caret;
 import javax.swing.text.DefaultCaret;
+import javax.swing.text.DefaultEditorKit;
+import javax.swing.text.DefaultHighlighter;
 import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.Highlighter;
+import javax.swing.text.LayeredHighlighter;
 import javax.swing.text.JTextComponent;
-import javax.swing.undo.UndoManager;
+import javax.swing.text.PlainDocument;
+import javax.swing.text.PlainView;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.text.TabExpander;
+import javax.swing.text.Utilities;
+import javax.swing.text.View;
+import javax.swing.text.ViewFactory;
+import javax.swing.text.WrappedPlainView;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.UndoableEdit;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
 import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
 import java.awt.geom.RoundRectangle2D;
 import java.awt.image.BufferedImage;
 import java.awt.print.PrinterException;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * AdvancedNotepad - final deliverable Java single-file application with enhanced tab UI
@@ -23,31 +103,67 @@ public class AdvancedNotepad extends JFrame {
 
     // UI
     private final JTabbedPane tabs = new JTabbedPane();
-    private boolean darkMode = true;
+    private Palette palette = Palette.DARK;
+    private final List<Palette> themes = new ArrayList<>(List.of(Palette.DARK, Palette.LIGHT));
+    private final AnimationScheduler animations = new AnimationScheduler();
 
-    // State per tab
-    private final Map<Component, File> tabFileMap = new HashMap<>();
-    private final Map<Component, UndoManager> undoMap = new HashMap<>();
-    private final Map<Component, Boolean> modifiedMap = new HashMap<>();
-
-    // Modern tab headers
-    private final Map<Component, TabHeader> headerMap = new HashMap<>();
+    // State per tab, found by tab component, path or file identity
+    private final SessionRegistry sessions = new SessionRegistry();
+    private EditorSession selectedSession;
 
     // Recent files handling
     private final LinkedList<String> recentFiles = new LinkedList<>();
+    private boolean recentLoaded; // the store is read when the list is first needed
     private final int MAX_RECENTS = 8;
     private final File recentFileStore = new File(System.getProperty("user.home"), ".advancednotepad_recent");
 
+    // Open tabs with their carets and scroll positions, reopened on the next start
+    private final File sessionStore = new File(System.getProperty("user.home"), ".advancednotepad_session");
+    private String savedSession; // what was last queued for sessionStore, so unchanged state is not rewritten
+
+    // User themes, one .properties file each, read on the first theme switch
+    private final File themeDir = new File(System.getProperty("user.home"), ".advancednotepad_themes");
+    private boolean themesLoaded;
+
     // Autosave / recovery
     private final File autosaveDir = new File(System.getProperty("user.home"), ".advancednotepad_autosave");
-    private final int AUTOSAVE_INTERVAL_MS = 60_000; // 60 seconds
+    // set before any tab starts a journal; journals started earlier are a previous run's
+    private final long startedAt = System.currentTimeMillis();
+    private final int AUTOSAVE_INTERVAL_MS = 2_000; // journal flush interval
     private javax.swing.Timer autosaveTimer;
+    private final ExecutorService journalExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "edit-journal");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Files above this size open in the read-only memory-mapped view
+    private final long LARGE_FILE_THRESHOLD = 128L * 1024 * 1024;
+
+    // Lines longer than this many chars are cut into fixed-size rows and not highlighted
+    private static final int LONG_LINE_THRESHOLD = 16 * 1024;
+
+    // Estimated heap the open documents may use before idle tabs are hibernated (-Dadvancednotepad.tabMemoryMB)
+    private static final long TAB_MEMORY_BUDGET = Long.getLong("advancednotepad.tabMemoryMB", 512) * 1024 * 1024;
+    // Heap each tab's undo history may use before its oldest steps spill to disk (-Dadvancednotepad.undoMemoryMB)
+    private static final long UNDO_MEMORY_BUDGET = Long.getLong("advancednotepad.undoMemoryMB", 8) * 1024 * 1024;
+
+    // Event dispatch thread stalls longer than this are sampled and logged (-Dadvancednotepad.stallMs, 0 = off)
+    private static final long STALL_THRESHOLD_MS = Long.getLong("advancednotepad.stallMs", 250);
+    private static final EdtWatchdog WATCHDOG = new EdtWatchdog(STALL_THRESHOLD_MS,
+            new File(System.getProperty("user.home"), ".advancednotepad_stalls.log"));
 
     // UI components used across methods
     private final JMenu recentMenu = new JMenu("Recent Files");
+    private final JLabel caretStatus = new JLabel(" ");
+    private final JLabel statsStatus = new JLabel(" ");
+
+    // The editors' right-click menu, shared by all tabs and built on first use
+    private JPopupMenu editorPopup;
 
     public AdvancedNotepad() {
         super("AdvancedNotepad");
+        StartupProfile.mark("frame created");
         setDefaultCloseOperation(DO_NOTHING_ON_CLOSE);
         setSize(1100, 720);
         setLocationRelativeTo(null);
@@ -56,7 +172,19 @@ public class AdvancedNotepad extends JFrame {
         setAppIcon();
 
         // Root panel with subtle hover effect
-        HoverPanel root = new HoverPanel();
+        HoverPanel root = new HoverPanel() {
+            private boolean painted;
+
+            @Override
+            public void paint(Graphics g) {
+                super.paint(g);
+                if (painted) return;
+                painted = true;
+                StartupProfile.finish("first paint");
+                // the font list takes a while to build; have it ready before the font dialog is opened
+                ForkJoinPool.commonPool().execute(FontFamilies::preload);
+            }
+        };
         root.setLayout(new BorderLayout(12, 12));
         root.setBorder(new EmptyBorder(12, 12, 12, 12));
         applyTheme(root);
@@ -69,12 +197,8 @@ public class AdvancedNotepad extends JFrame {
         JPanel titlePanel = new JPanel(new BorderLayout()) {
             @Override
             protected void paintComponent(Graphics g) {
-                Graphics2D g2 = (Graphics2D) g.create();
-                g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-                Color c = darkMode ? new Color(32, 34, 38) : new Color(245, 245, 245);
-                g2.setColor(c);
-                g2.fillRect(0, 0, getWidth(), getHeight());
-                g2.dispose();
+                g.setColor(palette().titleBg);
+                g.fillRect(0, 0, getWidth(), getHeight());
             }
         };
         titlePanel.setBorder(new EmptyBorder(12, 16, 12, 16));
@@ -90,18 +214,25 @@ public class AdvancedNotepad extends JFrame {
         tabs.setTabLayoutPolicy(JTabbedPane.SCROLL_TAB_LAYOUT);
         tabs.setOpaque(false);
         JPanel tabPanel = new JPanel(new BorderLayout()) {
+            // the gradient only depends on the height, so it is made again when that or the palette changes
+            private GradientPaint gradient;
+            private Palette gradientPalette;
+
             @Override
             protected void paintComponent(Graphics g) {
-                Graphics2D g2 = (Graphics2D) g.create();
-                g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-                GradientPaint gp = darkMode ?
-                        new GradientPaint(0, 0, new Color(28, 30, 34), 0, getHeight(), new Color(18, 20, 23)) :
-                        new GradientPaint(0, 0, new Color(245, 245, 245), 0, getHeight(), Color.WHITE);
-                g2.setPaint(gp);
-                g2.fillRect(0, 0, getWidth(), getHeight());
-                g2.setColor(darkMode ? new Color(80, 80, 80) : new Color(200, 200, 200));
-                g2.drawRect(0, 0, getWidth() - 1, getHeight() - 1);
-                g2.dispose();
+                Graphics2D g2 = (Graphics2D) g;
+                Palette p = palette();
+                int h = getHeight();
+                if (gradient == null || gradientPalette != p || gradient.getPoint2().getY() != h) {
+                    gradient = new GradientPaint(0, 0, p.tabAreaTop, 0, h, p.tabAreaBottom);
+                    gradientPalette = p;
+                }
+                Paint old = g2.getPaint();
+                g2.setPaint(gradient);
+                g2.fillRect(0, 0, getWidth(), h);
+                g2.setPaint(old);
+                g2.setColor(p.tabAreaBorder);
+                g2.drawRect(0, 0, getWidth() - 1, h - 1);
             }
         };
         tabPanel.setBorder(new EmptyBorder(4, 4, 4, 4));
@@ -134,21 +265,29 @@ public class AdvancedNotepad extends JFrame {
         bottomBar.add(exportBtn);
         bottomBar.add(Box.createHorizontalStrut(20));
         bottomBar.add(themeBtn);
-        root.add(bottomBar, BorderLayout.SOUTH);
+        caretStatus.setForeground(getFg());
+        caretStatus.setBorder(new EmptyBorder(0, 8, 0, 12));
+        statsStatus.setForeground(getFg());
+        JPanel statusPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 16, 0));
+        statusPanel.setOpaque(false);
+        statusPanel.add(statsStatus);
+        statusPanel.add(caretStatus);
+        JPanel bottom = new JPanel(new BorderLayout());
+        bottom.setOpaque(false);
+        bottom.add(bottomBar, BorderLayout.CENTER);
+        bottom.add(statusPanel, BorderLayout.EAST);
+        root.add(bottom, BorderLayout.SOUTH);
 
         // Menu bar (modern-styled)
         JMenuBar menuBar = new JMenuBar() {
             @Override
             protected void paintComponent(Graphics g) {
                 if (g == null) return;
-                Graphics2D g2 = (Graphics2D) g.create();
-                g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-                Color c = darkMode ? new Color(28, 30, 34) : new Color(240, 240, 240);
-                g2.setColor(c);
-                g2.fillRect(0, 0, getWidth(), getHeight());
-                g2.setColor(darkMode ? new Color(0, 0, 0, 40) : new Color(0, 0, 0, 15));
-                g2.fillRect(0, 0, getWidth(), 1);
-                g2.dispose();
+                Palette p = palette();
+                g.setColor(p.menuBarBg);
+                g.fillRect(0, 0, getWidth(), getHeight());
+                g.setColor(p.menuBarEdge);
+                g.fillRect(0, 0, getWidth(), 1);
                 super.paintComponent(g);
             }
         };
@@ -176,6 +315,8 @@ public class AdvancedNotepad extends JFrame {
         JMenuItem copyItem = new JMenuItem("Copy");
         JMenuItem pasteItem = new JMenuItem("Paste");
         JMenuItem selectAllItem = new JMenuItem("Select All");
+        JMenuItem goToLineItem = new JMenuItem("Go To Line...");
+        JMenuItem findInFilesItem = new JMenuItem("Find in Files...");
         editMenu.add(undoItem);
         editMenu.add(redoItem);
         editMenu.addSeparator();
@@ -184,6 +325,9 @@ public class AdvancedNotepad extends JFrame {
         editMenu.add(pasteItem);
         editMenu.addSeparator();
         editMenu.add(selectAllItem);
+        editMenu.addSeparator();
+        editMenu.add(goToLineItem);
+        editMenu.add(findInFilesItem);
 
         JMenu formatMenu = new JMenu("Format");
         JMenuItem fontChooserItem = new JMenuItem("Font...");
@@ -195,7 +339,9 @@ public class AdvancedNotepad extends JFrame {
         formatMenu.add(bgColorItem);
 
         JMenu helpMenu = new JMenu("Help");
+        JMenuItem diagnosticsItem = new JMenuItem("Diagnostics...");
         JMenuItem aboutItem = new JMenuItem("About");
+        helpMenu.add(diagnosticsItem);
         helpMenu.add(aboutItem);
 
         menuBar.add(fileMenu);
@@ -212,7 +358,7 @@ public class AdvancedNotepad extends JFrame {
                 jm.setFont(jm.getFont().deriveFont(Font.BOLD, 13f));
                 jm.setBorder(new EmptyBorder(6, 10, 6, 10));
                 jm.addMouseListener(new MouseAdapter() {
-                    @Override public void mouseEntered(MouseEvent e) { jm.setForeground(darkMode ? Color.WHITE : new Color(20,20,20)); }
+                    @Override public void mouseEntered(MouseEvent e) { jm.setForeground(strongFg); }
                     @Override public void mouseExited(MouseEvent e)  { jm.setForeground(getFg()); }
                 });
             }
@@ -243,17 +389,19 @@ public class AdvancedNotepad extends JFrame {
 
         // Edit actions
         undoItem.addActionListener(e -> {
-            UndoManager um = getCurrentUndoManager();
-            if (um != null && um.canUndo()) um.undo();
+            EditHistory history = getCurrentHistory();
+            if (history != null) history.undo();
         });
         redoItem.addActionListener(e -> {
-            UndoManager um = getCurrentUndoManager();
-            if (um != null && um.canRedo()) um.redo();
+            EditHistory history = getCurrentHistory();
+            if (history != null) history.redo();
         });
         cutItem.addActionListener(e -> getCurrentTextArea().ifPresent(JTextArea::cut));
         copyItem.addActionListener(e -> getCurrentTextArea().ifPresent(JTextArea::copy));
         pasteItem.addActionListener(e -> getCurrentTextArea().ifPresent(JTextArea::paste));
         selectAllItem.addActionListener(e -> getCurrentTextArea().ifPresent(JTextArea::selectAll));
+        goToLineItem.addActionListener(e -> showGoToLineDialog());
+        findInFilesItem.addActionListener(e -> showFindInFilesDialog());
 
         // Format actions
         fontChooserItem.addActionListener(e -> showFontChooser());
@@ -266,6 +414,7 @@ public class AdvancedNotepad extends JFrame {
             if (c != null) area.setBackground(c);
         }));
 
+        diagnosticsItem.addActionListener(e -> showDiagnosticsDialog());
         aboutItem.addActionListener(e -> showAboutDialog());
 
         // Accelerators
@@ -278,25 +427,51 @@ public class AdvancedNotepad extends JFrame {
         copyItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_C, InputEvent.CTRL_DOWN_MASK));
         pasteItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_V, InputEvent.CTRL_DOWN_MASK));
         selectAllItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_A, InputEvent.CTRL_DOWN_MASK));
+        goToLineItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_G, InputEvent.CTRL_DOWN_MASK));
+        findInFilesItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F, InputEvent.CTRL_DOWN_MASK | InputEvent.SHIFT_DOWN_MASK));
         fontChooserItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_T, InputEvent.CTRL_DOWN_MASK));
 
-        // Load recent files if exist
-        loadRecentFiles();
-        rebuildRecentMenu();
+        // Recent files are read and listed when the submenu is first opened
+        recentMenu.addMenuListener(new MenuListener() {
+            @Override
+            public void menuSelected(MenuEvent e) {
+                rebuildRecentMenu();
+            }
+
+            @Override
+            public void menuDeselected(MenuEvent e) {
+            }
+
+            @Override
+            public void menuCanceled(MenuEvent e) {
+            }
+        });
+        StartupProfile.mark("menus built");
 
-        // Check autosave recovery on startup
+        // Look for autosaves of a previous session in the background
         checkRecoveryFiles();
 
         // Start autosave timer
         startAutosaveTimer();
 
-        // Update tab headers when selection changes
+        // Update tab headers when selection changes; only the old and the new tab's
         tabs.addChangeListener(e -> {
-            Component sel = tabs.getSelectedComponent();
-            for (Map.Entry<Component, TabHeader> entry : headerMap.entrySet()) {
-                TabHeader h = entry.getValue();
-                h.setSelected(entry.getKey() == sel);
+            EditorSession sel = sessions.get(tabs.getSelectedComponent());
+            if (sel != selectedSession) {
+                long now = System.nanoTime();
+                if (selectedSession != null) {
+                    selectedSession.lastUsed = now;
+                    if (selectedSession.header != null) selectedSession.header.setSelected(false);
+                }
+                if (sel != null) {
+                    sel.lastUsed = now;
+                    if (sel.header != null) sel.header.setSelected(true);
+                    if (sel.hibernation != null && sel.area == null) restore(sel);
+                }
+                selectedSession = sel;
             }
+            updateCaretStatus();
+            updateStatsStatus();
         });
 
         // Window close handler
@@ -305,12 +480,25 @@ public class AdvancedNotepad extends JFrame {
             public void windowClosing(WindowEvent e) {
                 exitApplication();
             }
+
+            // nothing animates while the window is in the background or minimized
+            @Override
+            public void windowActivated(WindowEvent e) {
+                animations.setPaused(false);
+            }
+
+            @Override
+            public void windowDeactivated(WindowEvent e) {
+                animations.setPaused(true);
+            }
         });
 
-        // Start with one new tab
-        createNewTab(null, null);
+        // Reopen the last session's tabs, or start with one new tab
+        if (!restoreSession()) createNewTab(null, null);
+        StartupProfile.mark("tabs opened");
 
         setVisible(true);
+        StartupProfile.mark("window shown");
     }
 
     // -------------------- App icon --------------------
@@ -347,40 +535,115 @@ public class AdvancedNotepad extends JFrame {
 
     // -------------------- Tab & Editor helpers --------------------
     private void createNewTab(File fileToOpen, String optionalContent) {
-        JTextArea area = new JTextArea();
-        area.setFont(new Font("Consolas", Font.PLAIN, 14));
-        area.setLineWrap(true);
-        area.setWrapStyleWord(true);
-        area.setMargin(new Insets(8, 10, 8, 10));
-        area.setBackground(getBg());
-        area.setForeground(getFg());
-        area.setCaretColor(getFg());
-        AnimatedCaret ac = new AnimatedCaret();
-        ac.setBlinkRate(500);
-        area.setCaret(ac);
-
-        JScrollPane sp = new JScrollPane(area);
+        if (fileToOpen != null && optionalContent == null && fileToOpen.length() > LARGE_FILE_THRESHOLD) {
+            createLargeFileTab(fileToOpen);
+            return;
+        }
+        JScrollPane sp = new JScrollPane();
+        // registered before the tab is added, so selecting it finds the session
+        EditorSession session = sessions.open(sp);
         String title = "Untitled";
         if (fileToOpen != null) {
             title = fileToOpen.getName();
-            tabFileMap.put(sp, fileToOpen);
+            sessions.setFile(session, fileToOpen);
         }
 
         int idx = tabs.getTabCount();
         tabs.addTab(title, sp);
         tabs.setSelectedIndex(idx);
-        undoMap.put(sp, new UndoManager());
-        modifiedMap.put(sp, false);
-
-        // document listener for changes
-        Document doc = area.getDocument();
-        UndoManager um = undoMap.get(sp);
-        doc.addUndoableEditListener(e -> {
-            um.addEdit(e.getEdit());
+        EditorArea area = attachEditor(session, optionalContent == null);
+
+        // Tab header with modern header component
+        tabs.setTabComponentAt(idx, makeTabHeader(title, sp));
+
+        // load content if provided
+        if (optionalContent != null) {
+            area.setText(optionalContent);
             setModifiedFlag(sp, true);
+        } else if (fileToOpen != null) {
+            loadInto(session, fileToOpen, null);
+        }
+    }
+
+    /**
+     * Builds a tab's editor and everything hanging off its document. The journal takes the
+     * session's file as its base when {@code fromFile}, otherwise an empty document.
+     */
+    private EditorArea attachEditor(EditorSession session, boolean fromFile) {
+        JScrollPane sp = (JScrollPane) session.tab;
+        File fileToOpen = session.file;
+        PieceTableDocument doc = new PieceTableDocument();
+        EditorArea area = new EditorArea(doc);
+        area.setFont(new Font("Consolas", Font.PLAIN, 14));
+        area.setMargin(new Insets(8, 10, 8, 10));
+        area.setBackground(getBg());
+        area.setForeground(getFg());
+        area.setCaretColor(getFg());
+        AnimatedCaret ac = new AnimatedCaret(animations);
+        ac.setBlinkRate(500);
+        area.setCaret(ac);
+
+        sp.setViewportView(area);
+        session.area = area;
+
+        // registered after the caret's own listener, so it is notified first and is current by the time the caret moves
+        LineIndex lineIndex = new LineIndex(doc);
+        doc.addDocumentListener(lineIndex);
+        session.lines = lineIndex;
+        // wrapping is switched on once the index exists, so the area gets the indexed wrap view
+        area.lines = lineIndex;
+        area.setLineWrap(true);
+        area.setWrapStyleWord(true);
+        area.addCaretListener(e -> {
+            if (tabs.getSelectedComponent() == sp) updateCaretStatus();
+        });
+        TextStats stats = new TextStats(doc, () -> {
+            if (tabs.getSelectedComponent() == sp) updateStatsStatus();
+        });
+        doc.addDocumentListener(stats);
+        session.stats = stats;
+        area.syntax = new SyntaxHighlighter(area, doc, lineIndex);
+        doc.addDocumentListener(area.syntax);
+        area.syntax.setLexer(Lexer.forFile(fileToOpen));
+
+        // undo history; what a file load appends is the starting point, not an edit
+        EditHistory history = new EditHistory(doc, area, UNDO_MEMORY_BUDGET,
+                () -> session.loader == null, () -> setModifiedFlag(sp, true));
+        doc.addDocumentListener(history);
+        session.history = history;
+
+        // journal every change (undo and redo included) so a crash loses seconds, not minutes;
+        // the file's text is the journal's base, so loading itself is not journaled
+        EditJournal journal = new EditJournal(autosaveDir, journalExecutor);
+        if (fromFile) journal.rebase(fileToOpen);
+        else journal.start(fileToOpen);
+        session.journal = journal;
+        doc.addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                if (session.loader == null) journal.inserted(e.getOffset(), doc.spans(e.getOffset(), e.getLength()));
+            }
+
+            public void removeUpdate(DocumentEvent e) {
+                if (session.loader == null) journal.removed(e.getOffset(), e.getLength());
+            }
+
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+
+        // Add Key bindings for Save (Ctrl+S) per area
+        area.getInputMap().put(KeyStroke.getKeyStroke("control S"), "save");
+        area.getActionMap().put("save", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                saveCurrentTab();
+            }
         });
+        return area;
+    }
 
-        // right-click popup
+    /** The right-click menu of every editor; it acts on whichever one it was opened over. */
+    private JPopupMenu editorPopup() {
+        if (editorPopup != null) return editorPopup;
         JPopupMenu popup = new JPopupMenu();
         JMenuItem pCut = new JMenuItem("Cut");
         JMenuItem pCopy = new JMenuItem("Copy");
@@ -394,43 +657,53 @@ public class AdvancedNotepad extends JFrame {
         popup.add(pSelectAll);
         popup.addSeparator();
         popup.add(pFont);
-        pCut.addActionListener(e -> area.cut());
-        pCopy.addActionListener(e -> area.copy());
-        pPaste.addActionListener(e -> area.paste());
-        pSelectAll.addActionListener(e -> area.selectAll());
+        pCut.addActionListener(e -> ((JTextArea) popup.getInvoker()).cut());
+        pCopy.addActionListener(e -> ((JTextArea) popup.getInvoker()).copy());
+        pPaste.addActionListener(e -> ((JTextArea) popup.getInvoker()).paste());
+        pSelectAll.addActionListener(e -> ((JTextArea) popup.getInvoker()).selectAll());
         pFont.addActionListener(e -> showFontChooser());
-        area.setComponentPopupMenu(popup);
         applyTheme(popup);
+        editorPopup = popup;
+        return popup;
+    }
 
-        // Add Key bindings for Save (Ctrl+S) per area
-        area.getInputMap().put(KeyStroke.getKeyStroke("control S"), "save");
-        area.getActionMap().put("save", new AbstractAction() {
-            public void actionPerformed(ActionEvent e) {
-                saveCurrentTab();
-            }
-        });
+    /** Streams a file, or a hibernated tab's snapshot of it, into the session's editor. */
+    private void loadInto(EditorSession session, File file, File snapshot) {
+        EditorArea area = session.area;
+        // stream into the existing document so the undo wiring stays attached
+        DocumentLoader loader = new DocumentLoader(file, snapshot, (PieceTableDocument) area.getDocument(), area, session.tab);
+        session.loader = loader;
+        // counting every chunk on the EDT would slow the load down; count it once at the end
+        session.stats.pause();
+        loader.onLoaded(session.stats::recount);
+        loader.execute();
+    }
 
-        // load content if provided
-        if (optionalContent != null) {
-            area.setText(optionalContent);
-            setModifiedFlag(sp, true);
-        } else if (fileToOpen != null) {
-            try (BufferedReader r = new BufferedReader(new FileReader(fileToOpen))) {
-                area.read(r, null);
-                setModifiedFlag(sp, false);
-            } catch (IOException ex) {
-                JOptionPane.showMessageDialog(this, "Error opening: " + ex.getMessage());
-            }
+    private void createLargeFileTab(File file) {
+        MappedTextModel model;
+        try {
+            model = new MappedTextModel(file);
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(this, "Error opening: " + ex.getMessage());
+            return;
         }
-
-        // Tab header with modern header component
-        tabs.setTabComponentAt(idx, makeTabHeader(title, sp));
+        LargeFileView view = new LargeFileView(model);
+        JScrollPane sp = new JScrollPane(view);
+        String title = file.getName();
+        sessions.setFile(sessions.open(sp), file);
+        int idx = tabs.getTabCount();
+        tabs.addTab(title, sp);
+        tabs.setSelectedIndex(idx);
+        Component header = makeTabHeader(title, sp);
+        ((JComponent) header).setToolTipText("Large file - read-only, memory-mapped");
+        tabs.setTabComponentAt(idx, header);
     }
 
     // create custom tab header with close icon
     private Component makeTabHeader(String title, Component content) {
-        TabHeader header = new TabHeader(title, content);
-        headerMap.put(content, header);
+        TabHeader header = new TabHeader(title);
+        EditorSession session = sessions.get(content);
+        if (session != null) session.header = header;
         boolean isSelected = tabs.getSelectedComponent() == content;
         header.setSelected(isSelected);
         return header;
@@ -442,10 +715,18 @@ public class AdvancedNotepad extends JFrame {
         int idx = tabs.indexOfComponent(content);
         if (idx >= 0) {
             tabs.removeTabAt(idx);
-            tabFileMap.remove(content);
-            undoMap.remove(content);
-            modifiedMap.remove(content);
-            headerMap.remove(content);
+            if (content instanceof JScrollPane sp && sp.getViewport().getView() instanceof LargeFileView v) v.dispose();
+            EditorSession session = sessions.remove(content);
+            if (session != null) {
+                if (session.hibernating != null) session.hibernating.cancel(true);
+                if (session.hibernation != null && session.hibernation.snapshot() != null) session.hibernation.snapshot().delete();
+                if (session.loader != null) session.loader.cancel(true);
+                if (session.journal != null) session.journal.discard();
+                if (session.stats != null) session.stats.dispose();
+                if (session.history != null) session.history.dispose();
+            }
+            if (content instanceof JScrollPane sp && sp.getViewport().getView() instanceof JTextArea area
+                    && area.getCaret() instanceof AnimatedCaret caret) caret.dispose();
             if (tabs.getTabCount() == 0) createNewTab(null, null);
         }
     }
@@ -460,20 +741,30 @@ public class AdvancedNotepad extends JFrame {
         return Optional.empty();
     }
 
-    private UndoManager getCurrentUndoManager() {
-        Component c = tabs.getSelectedComponent();
-        return undoMap.get(c);
+    private EditHistory getCurrentHistory() {
+        EditorSession session = sessions.get(tabs.getSelectedComponent());
+        return session == null ? null : session.history;
+    }
+
+    private TabHeader headerOf(Component tab) {
+        EditorSession session = sessions.get(tab);
+        return session == null ? null : session.header;
     }
 
     private void setModifiedFlag(Component tabComponent, boolean modified) {
-        modifiedMap.put(tabComponent, modified);
+        // called for every edit, so only touch the tab when the state flips
+        EditorSession session = sessions.get(tabComponent);
+        if (session == null || session.modified == modified) return;
+        session.modified = modified;
         int idx = tabs.indexOfComponent(tabComponent);
         if (idx >= 0) {
             String title = tabs.getTitleAt(idx);
             if (modified && !title.endsWith("*")) title += "*";
             if (!modified) title = title.replace("*", "");
             tabs.setTitleAt(idx, title);
-            tabs.setTabComponentAt(idx, makeTabHeader(title, tabComponent));
+            TabHeader header = session.header;
+            if (header != null) header.setTitle(title);
+            else tabs.setTabComponentAt(idx, makeTabHeader(title, tabComponent));
         }
     }
 
@@ -484,12 +775,11 @@ public class AdvancedNotepad extends JFrame {
         int option = chooser.showOpenDialog(this);
         if (option == JFileChooser.APPROVE_OPTION) {
             File f = chooser.getSelectedFile();
-            // check if already open
-            for (Map.Entry<Component, File> e : tabFileMap.entrySet()) {
-                if (f.equals(e.getValue())) {
-                    tabs.setSelectedComponent(e.getKey());
-                    return;
-                }
+            // check if already open, under this or any other path
+            EditorSession open = sessions.find(f);
+            if (open != null) {
+                tabs.setSelectedComponent(open.tab);
+                return;
             }
             createNewTab(f, null);
             addToRecent(f.getAbsolutePath());
@@ -498,44 +788,67 @@ public class AdvancedNotepad extends JFrame {
 
     private void saveCurrentTab() {
         Component c = tabs.getSelectedComponent();
-        if (c == null || !(c instanceof JScrollPane)) return;
-        File f = tabFileMap.get(c);
+        if (c == null || !(c instanceof JScrollPane sp)) return;
+        if (!(sp.getViewport().getView() instanceof JTextArea area)) return; // large-file tabs are read-only
+        if (!(area.getDocument() instanceof PieceTableDocument doc)) return;
+        EditorSession session = sessions.get(c);
+        if (session == null) return;
+        if (session.loader != null) {
+            JOptionPane.showMessageDialog(this, "The file is still loading.");
+            return;
+        }
+        File f = session.file;
         if (f == null) {
             saveAsCurrentTab();
             return;
         }
+        SaveJob running = session.save;
+        if (running != null) {
+            // the snapshot in flight may predate the latest edits
+            running.saveAgain = true;
+            return;
+        }
+        SaveJob job = new SaveJob(c, doc, f);
+        session.save = job;
+        job.execute();
+    }
+
+    /** Waits for any save of this tab to finish; returns whether the tab ended up unmodified. */
+    private boolean awaitSave(Component comp) {
+        EditorSession session = sessions.get(comp);
+        if (session == null) return true;
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
         try {
-            JScrollPane sp = (JScrollPane) c;
-            JTextArea area = (JTextArea) sp.getViewport().getView();
-            try (BufferedWriter w = new BufferedWriter(new FileWriter(f))) {
-                area.write(w);
-            }
-            setModifiedFlag(c, false);
-            addToRecent(f.getAbsolutePath());
-            tabs.setTitleAt(tabs.getSelectedIndex(), f.getName());
-            tabs.setTabComponentAt(tabs.getSelectedIndex(), makeTabHeader(f.getName(), c));
-        } catch (IOException ex) {
-            JOptionPane.showMessageDialog(this, "Error saving: " + ex.getMessage());
+            while (session.save != null) session.save.complete();
+        } finally {
+            setCursor(Cursor.getDefaultCursor());
         }
+        return !session.modified;
     }
 
     private void saveAsCurrentTab() {
         Component c = tabs.getSelectedComponent();
-        if (c == null) return;
+        if (c == null || getCurrentTextArea().isEmpty()) return;
         JFileChooser chooser = new JFileChooser();
         chooser.setFileFilter(new FileNameExtensionFilter("Text files", "txt", "text"));
         int option = chooser.showSaveDialog(this);
         if (option == JFileChooser.APPROVE_OPTION) {
             File f = chooser.getSelectedFile();
             if (!f.getName().contains(".")) f = new File(f.getAbsolutePath() + ".txt");
-            tabFileMap.put(c, f);
+            EditorSession session = sessions.get(c);
+            if (session == null) return;
+            sessions.setFile(session, f);
+            File saved = f;
+            getCurrentTextArea().ifPresent(area -> {
+                if (area instanceof EditorArea ea && ea.syntax != null) ea.syntax.setLexer(Lexer.forFile(saved));
+            });
             saveCurrentTab();
         }
     }
 
     private boolean confirmSaveForComponent(Component comp) {
-        Boolean modified = modifiedMap.getOrDefault(comp, false);
-        if (modified == null || !modified) return true;
+        EditorSession session = sessions.get(comp);
+        if (session == null || !session.modified) return true;
         int opt = JOptionPane.showConfirmDialog(this,
                 "Save changes to this document?", "Confirm",
                 JOptionPane.YES_NO_CANCEL_OPTION);
@@ -543,6 +856,8 @@ public class AdvancedNotepad extends JFrame {
         if (opt == JOptionPane.YES_OPTION) {
             tabs.setSelectedComponent(comp);
             saveCurrentTab();
+            // keep the tab if the save failed or Save As was cancelled
+            return awaitSave(comp);
         }
         return true;
     }
@@ -556,7 +871,12 @@ public class AdvancedNotepad extends JFrame {
     }
 
     private void exitApplication() {
+        for (EditorSession session : new ArrayList<>(sessions.all())) {
+            if (session.save != null) awaitSave(session.tab);
+        }
         if (!confirmSaveForAll()) return;
+        // queued before the journal thread is shut down, which waits for it
+        saveSession();
         cleanupAutosave();
         dispose();
         System.exit(0);
@@ -564,14 +884,16 @@ public class AdvancedNotepad extends JFrame {
 
     // -------------------- Recent files --------------------
     private void addToRecent(String path) {
+        loadRecentFiles();
         recentFiles.remove(path);
         recentFiles.addFirst(path);
         while (recentFiles.size() > MAX_RECENTS) recentFiles.removeLast();
-        rebuildRecentMenu();
         saveRecentFiles();
     }
 
+    // rebuilt each time the submenu opens, so changes need not touch it
     private void rebuildRecentMenu() {
+        loadRecentFiles();
         recentMenu.removeAll();
         if (recentFiles.isEmpty()) {
             JMenuItem empty = new JMenuItem("No recent files");
@@ -582,13 +904,15 @@ public class AdvancedNotepad extends JFrame {
                 JMenuItem it = new JMenuItem(p);
                 it.addActionListener(e -> {
                     File f = new File(p);
-                    if (f.exists()) {
+                    EditorSession open = sessions.find(f);
+                    if (open != null) {
+                        tabs.setSelectedComponent(open.tab);
+                    } else if (f.exists()) {
                         createNewTab(f, null);
                     } else {
                         int r = JOptionPane.showConfirmDialog(this, "File not found. Remove from recent list?", "Missing", JOptionPane.YES_NO_OPTION);
                         if (r == JOptionPane.YES_OPTION) {
                             recentFiles.remove(p);
-                            rebuildRecentMenu();
                             saveRecentFiles();
                         }
                     }
@@ -597,12 +921,14 @@ public class AdvancedNotepad extends JFrame {
             }
             recentMenu.addSeparator();
             JMenuItem clear = new JMenuItem("Clear Recent");
-            clear.addActionListener(e -> { recentFiles.clear(); rebuildRecentMenu(); saveRecentFiles(); });
+            clear.addActionListener(e -> { recentFiles.clear(); saveRecentFiles(); });
             recentMenu.add(clear);
         }
     }
 
     private void loadRecentFiles() {
+        if (recentLoaded) return;
+        recentLoaded = true;
         if (!recentFileStore.exists()) return;
         try (BufferedReader r = new BufferedReader(new FileReader(recentFileStore))) {
             String line;
@@ -622,42 +948,82 @@ public class AdvancedNotepad extends JFrame {
     private void startAutosaveTimer() {
         if (!autosaveDir.exists()) autosaveDir.mkdirs();
         if (autosaveTimer != null) autosaveTimer.stop();
-        autosaveTimer = new javax.swing.Timer(AUTOSAVE_INTERVAL_MS, e -> autosaveAll());
+        autosaveTimer = new javax.swing.Timer(AUTOSAVE_INTERVAL_MS, e -> {
+            autosaveAll();
+            saveSession();
+            hibernateIdleTabs();
+        });
         autosaveTimer.start();
     }
 
+    /** Flushes every tab's edit journal and compacts the ones that outgrew their document. */
     private void autosaveAll() {
-        try {
-            if (!autosaveDir.exists()) autosaveDir.mkdirs();
-            int tabCount = tabs.getTabCount();
-            for (int i = 0; i < tabCount; i++) {
-                Component c = tabs.getComponentAt(i);
-                if (!(c instanceof JScrollPane sp)) continue;
-                JTextArea area = (JTextArea) sp.getViewport().getView();
-                boolean modified = modifiedMap.getOrDefault(c, false);
-                if (!modified) continue;
-                String name = "autosave_tab" + i + "_" + System.currentTimeMillis() + ".tmp";
-                File out = new File(autosaveDir, name);
-                try (BufferedWriter w = new BufferedWriter(new FileWriter(out))) {
-                    File orig = tabFileMap.get(c);
-                    w.write("##ORIG:" + (orig == null ? "" : orig.getAbsolutePath()));
-                    w.newLine();
-                    area.write(w);
-                } catch (IOException ex) {
-                    // ignore per-file
-                }
+        for (EditorSession session : sessions.all()) {
+            EditJournal journal = session.journal;
+            if (journal == null) continue;
+            journal.flush();
+            if (session.tab instanceof JScrollPane sp
+                    && sp.getViewport().getView() instanceof JTextArea area
+                    && area.getDocument() instanceof PieceTableDocument doc
+                    && journal.needsCompaction(doc.getLength())) {
+                journal.compact(session.file, doc.snapshot());
             }
-        } catch (Exception ignored) {}
+        }
     }
 
+    /**
+     * Lists the autosaves a previous run left behind on a worker thread and, once the window
+     * is up, offers to recover them. Journals this run has started since are left alone.
+     */
     private void checkRecoveryFiles() {
-        if (!autosaveDir.exists()) return;
-        File[] files = autosaveDir.listFiles((d, n) -> n.startsWith("autosave_tab"));
-        if (files == null || files.length == 0) return;
-        int opt = JOptionPane.showConfirmDialog(this,
-                "Auto-saved files found from previous session. Recover?", "Recovery", JOptionPane.YES_NO_OPTION);
-        if (opt == JOptionPane.YES_OPTION) {
+        long since = startedAt;
+        new SwingWorker<File[], Void>() {
+            @Override
+            protected File[] doInBackground() {
+                return autosaveDir.listFiles((d, n) -> n.startsWith("autosave_tab")
+                        || n.startsWith(EditJournal.PREFIX) && EditJournal.startedBefore(n, since));
+            }
+
+            @Override
+            protected void done() {
+                File[] files;
+                try {
+                    files = get();
+                } catch (InterruptedException | ExecutionException ex) {
+                    return;
+                }
+                if (files == null || files.length == 0) return;
+                int opt = JOptionPane.showConfirmDialog(AdvancedNotepad.this,
+                        "Auto-saved files found from previous session. Recover?", "Recovery", JOptionPane.YES_NO_OPTION);
+                if (opt == JOptionPane.YES_OPTION) new RecoveryJob(files).execute();
+            }
+        }.execute();
+    }
+
+    /**
+     * Reads autosaves back on a worker thread and opens a tab for each as it is ready. A
+     * recovered file replaces the tab the last session reopened for it, unless that was edited.
+     */
+    private class RecoveryJob extends SwingWorker<Void, Object> {
+        private final File[] files;
+
+        RecoveryJob(File[] files) {
+            this.files = files;
+        }
+
+        @Override
+        protected Void doInBackground() {
             for (File f : files) {
+                if (f.getName().startsWith(EditJournal.PREFIX)) {
+                    try {
+                        publish(EditJournal.replay(f));
+                    } catch (IOException | BadLocationException ex) {
+                        publish("Could not recover " + f.getName() + ": " + ex.getMessage());
+                    }
+                    f.delete();
+                    continue;
+                }
+                // snapshots written by older versions
                 try (BufferedReader r = new BufferedReader(new FileReader(f))) {
                     String header = r.readLine();
                     String origPath = "";
@@ -668,20 +1034,160 @@ public class AdvancedNotepad extends JFrame {
                         sb.append(line).append(System.lineSeparator());
                     }
                     File orig = origPath.isBlank() ? null : new File(origPath);
-                    createNewTab(orig, sb.toString());
+                    publish(new EditJournal.Recovered(orig, sb.toString()));
                     f.delete();
                 } catch (IOException ignored) {}
             }
+            return null;
+        }
+
+        @Override
+        protected void process(List<Object> chunks) {
+            for (Object chunk : chunks) {
+                if (chunk instanceof EditJournal.Recovered rec) {
+                    EditorSession open = rec.original() == null ? null : sessions.find(rec.original());
+                    createNewTab(rec.original(), rec.text());
+                    if (open != null && !open.modified) closeTab(open.tab);
+                } else {
+                    JOptionPane.showMessageDialog(AdvancedNotepad.this, chunk);
+                }
+            }
         }
     }
 
     private void cleanupAutosave() {
+        for (EditorSession session : sessions.all()) {
+            if (session.journal != null) session.journal.discard();
+            session.journal = null;
+        }
+        journalExecutor.shutdown();
+        try {
+            journalExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
         if (!autosaveDir.exists()) return;
         File[] files = autosaveDir.listFiles((d, n) -> n.startsWith("autosave_tab"));
         if (files == null) return;
         for (File f : files) f.delete();
     }
 
+    // -------------------- Session restore --------------------
+    /**
+     * Queues a write of the open file tabs to {@link #sessionStore} if anything changed since
+     * the last one. Runs on every autosave tick: gathering the state reads a few fields per
+     * tab, and the file is written on the journal thread. Untitled tabs are left out; their
+     * text only survives a crash, through the journals.
+     */
+    private void saveSession() {
+        StringBuilder sb = new StringBuilder();
+        int active = -1, n = 0;
+        Component selected = tabs.getSelectedComponent();
+        for (int i = 0; i < tabs.getTabCount(); i++) {
+            Component tab = tabs.getComponentAt(i);
+            EditorSession session = sessions.get(tab);
+            if (session == null || session.file == null) continue;
+            if (tab == selected) active = n;
+            n++;
+            int caret = 0, mark = 0;
+            Point scroll;
+            EditorSession.Hibernation h = session.hibernation;
+            if (h != null) {
+                // hibernated, not opened yet, or still loading
+                caret = h.caret();
+                mark = h.mark();
+                scroll = h.scroll();
+            } else {
+                scroll = ((JScrollPane) tab).getViewport().getViewPosition();
+                if (session.area != null) {
+                    caret = session.area.getCaret().getDot();
+                    mark = session.area.getCaret().getMark();
+                }
+            }
+            sb.append("tab=").append(caret).append(',').append(mark).append(',')
+                    .append(scroll.x).append(',').append(scroll.y).append(',')
+                    .append(session.file.getAbsolutePath()).append('\n');
+        }
+        String text = "active=" + active + "\n" + sb;
+        if (text.equals(savedSession)) return;
+        savedSession = text;
+        journalExecutor.execute(() -> {
+            // forced to disk and then replaced in one step, so a crash while writing leaves the previous session
+            File tmp = new File(sessionStore.getPath() + ".tmp");
+            try {
+                try (FileOutputStream out = new FileOutputStream(tmp)) {
+                    out.write(text.getBytes(StandardCharsets.UTF_8));
+                    out.getChannel().force(true);
+                }
+                Files.move(tmp.toPath(), sessionStore.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex) {
+                tmp.delete();
+            }
+        });
+    }
+
+    /**
+     * Reopens the tabs of the last session. Every tab gets its header straight away, but its
+     * file is only read when the tab is first selected (see {@link #restore}), so startup
+     * takes as long with a hundred tabs as with one. Files that are gone or already open
+     * (recovered from a journal) are skipped. Returns whether any tab was reopened.
+     */
+    private boolean restoreSession() {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(sessionStore.toPath(), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            return false;
+        }
+        int active = -1, entry = 0;
+        Component activeTab = null;
+        List<EditorSession> opened = new ArrayList<>();
+        List<EditorSession.Hibernation> states = new ArrayList<>();
+        for (String line : lines) {
+            try {
+                if (line.startsWith("active=")) {
+                    active = Integer.parseInt(line.substring(7));
+                    continue;
+                }
+                if (!line.startsWith("tab=")) continue;
+                String[] f = line.substring(4).split(",", 5);
+                if (f.length < 5) continue;
+                boolean isActive = entry++ == active;
+                File file = new File(f[4]);
+                if (!file.isFile() || sessions.find(file) != null) continue;
+                EditorSession.Hibernation state = new EditorSession.Hibernation(null,
+                        Integer.parseInt(f[0]), Integer.parseInt(f[1]),
+                        new Point(Integer.parseInt(f[2]), Integer.parseInt(f[3])), null, -1, -1);
+                // a scroll pane costs about a millisecond to build, so it waits until the tab is opened
+                JPanel placeholder = new JPanel();
+                EditorSession session = sessions.open(placeholder);
+                sessions.setFile(session, file);
+                tabs.addTab(file.getName(), placeholder);
+                tabs.setTabComponentAt(tabs.getTabCount() - 1, makeTabHeader(file.getName(), placeholder));
+                opened.add(session);
+                states.add(state);
+                if (isActive) activeTab = placeholder;
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        if (opened.isEmpty()) return false;
+        // the states go in only now, so adding the first tab (which selects it) loads nothing
+        for (int i = 0; i < opened.size(); i++) opened.get(i).hibernation = states.get(i);
+        tabs.setSelectedComponent(activeTab != null ? activeTab : opened.get(0).tab);
+        EditorSession sel = selectedSession;
+        if (sel != null && sel.hibernation != null && sel.area == null) restore(sel);
+        return true;
+    }
+
+    /** Scrolls a viewport back to where it was, once the text is laid out, as far as it still goes. */
+    private static void scrollBack(JViewport vp, Point scroll) {
+        SwingUtilities.invokeLater(() -> {
+            Dimension view = vp.getViewSize(), extent = vp.getExtentSize();
+            vp.setViewPosition(new Point(Math.max(0, Math.min(scroll.x, view.width - extent.width)),
+                    Math.max(0, Math.min(scroll.y, view.height - extent.height))));
+        });
+    }
+
     // -------------------- Find & Replace --------------------
     private void showFindReplaceDialog() {
         Optional<JTextArea> maybe = getCurrentTextArea();
@@ -689,7 +1195,8 @@ public class AdvancedNotepad extends JFrame {
         JTextArea area = maybe.get();
 
         JDialog d = new JDialog(this, "Find & Replace", false);
-        d.setSize(520, 220);
+        d.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+        d.setSize(600, 220);
         d.setLocationRelativeTo(this);
         d.setLayout(new BorderLayout(10, 10));
         d.getContentPane().setBackground(getBg());
@@ -699,13 +1206,13 @@ public class AdvancedNotepad extends JFrame {
         JLabel findLbl = new JLabel("Find:");
         findLbl.setForeground(getFg());
         JTextField findField = new JTextField();
-        findField.setBackground(darkMode ? new Color(40, 42, 46) : Color.WHITE);
+        findField.setBackground(fieldBg);
         findField.setForeground(getFg());
         findField.setCaretColor(getFg());
         JLabel replaceLbl = new JLabel("Replace:");
         replaceLbl.setForeground(getFg());
         JTextField replaceField = new JTextField();
-        replaceField.setBackground(darkMode ? new Color(40, 42, 46) : Color.WHITE);
+        replaceField.setBackground(fieldBg);
         replaceField.setForeground(getFg());
         replaceField.setCaretColor(getFg());
         top.add(findLbl);
@@ -719,6 +1226,17 @@ public class AdvancedNotepad extends JFrame {
         matchCase.setOpaque(false);
         matchCase.setForeground(getFg());
         options.add(matchCase);
+        JCheckBox regex = new JCheckBox("Regex");
+        regex.setOpaque(false);
+        regex.setForeground(getFg());
+        options.add(regex);
+        JCheckBox highlightAll = new JCheckBox("Highlight all", true);
+        highlightAll.setOpaque(false);
+        highlightAll.setForeground(getFg());
+        options.add(highlightAll);
+        JLabel status = new JLabel(" ");
+        status.setForeground(getFg());
+        options.add(status);
 
         JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
         buttons.setOpaque(false);
@@ -738,67 +1256,132 @@ public class AdvancedNotepad extends JFrame {
         d.add(buttons, BorderLayout.SOUTH);
 
         final int[] lastIndex = {0};
+        // search the document in place; the searcher is rebuilt only when the query changes
+        DocumentCharSequence text = new DocumentCharSequence(area.getDocument());
+        Searcher[] searcher = {null};
+        Supplier<Searcher> currentSearcher = () -> {
+            Searcher cur = searcher[0];
+            String find = findField.getText();
+            if (find.isEmpty()) return null;
+            if (cur == null || !cur.matches(find, matchCase.isSelected(), regex.isSelected())) {
+                try {
+                    cur = regex.isSelected()
+                            ? RegexSearcher.compile(find, matchCase.isSelected(), RegexSearcher.INTERACTIVE_BUDGET_NANOS)
+                            : new TextSearcher(find, matchCase.isSelected());
+                } catch (PatternSyntaxException ex) {
+                    status.setText("Invalid pattern: " + ex.getDescription());
+                    return null;
+                }
+                searcher[0] = cur;
+            }
+            return cur;
+        };
 
         ActionListener doFindNext = e -> {
-            String text = area.getText();
-            String find = findField.getText();
-            if (!matchCase.isSelected()) {
-                text = text.toLowerCase();
-                find = find.toLowerCase();
+            Searcher finder = currentSearcher.get();
+            if (finder == null) return;
+            text.reset();
+            int from = Math.max(area.getSelectionEnd(), lastIndex[0]);
+            int idx;
+            try {
+                idx = finder.find(text, from, text.length());
+            } catch (SearchTimeoutException ex) {
+                status.setText("Search timed out");
+                return;
             }
-            if (find.isEmpty()) return;
-            int from = area.getSelectionEnd();
-            int idx = text.indexOf(find, Math.max(from, lastIndex[0]));
             if (idx >= 0) {
                 area.requestFocus();
-                area.select(idx, idx + find.length());
+                area.select(idx, finder.end());
                 lastIndex[0] = idx + 1;
             } else {
-                JOptionPane.showMessageDialog(d, "Not found.");
+                status.setText("Not found");
+                Toolkit.getDefaultToolkit().beep();
             }
         };
 
         ActionListener doFindPrev = e -> {
-            String text = area.getText();
-            String find = findField.getText();
-            if (!matchCase.isSelected()) {
-                text = text.toLowerCase();
-                find = find.toLowerCase();
-            }
-            if (find.isEmpty()) return;
+            Searcher finder = currentSearcher.get();
+            if (finder == null) return;
+            text.reset();
             int from = Math.max(0, area.getSelectionStart() - 1);
-            int idx = text.lastIndexOf(find, from);
+            int idx;
+            try {
+                idx = finder.findLast(text, from);
+            } catch (SearchTimeoutException ex) {
+                status.setText("Search timed out");
+                return;
+            }
             if (idx >= 0) {
                 area.requestFocus();
-                area.select(idx, idx + find.length());
+                area.select(idx, finder.end());
                 lastIndex[0] = idx;
             } else {
-                JOptionPane.showMessageDialog(d, "Not found.");
+                status.setText("Not found");
+                Toolkit.getDefaultToolkit().beep();
             }
         };
 
         ActionListener doReplace = e -> {
-            String sel = area.getSelectedText();
-            String find = findField.getText();
-            if (sel != null && !sel.isEmpty()) {
-                if ((matchCase.isSelected() && sel.equals(find)) ||
-                        (!matchCase.isSelected() && sel.equalsIgnoreCase(find))) {
-                    area.replaceSelection(replaceField.getText());
+            Searcher finder = currentSearcher.get();
+            if (finder == null) return;
+            int selStart = area.getSelectionStart(), selEnd = area.getSelectionEnd();
+            if (selEnd > selStart) {
+                text.reset();
+                try {
+                    // only replace a selection that is itself a match
+                    if (finder.find(text, selStart, selEnd) == selStart && finder.end() == selEnd) {
+                        area.replaceSelection(finder.expand(replaceField.getText()));
+                    }
+                } catch (SearchTimeoutException ex) {
+                    status.setText("Search timed out");
+                    return;
                 }
             }
             doFindNext.actionPerformed(null);
         };
 
+        MatchHighlighter highlighter = area.getDocument() instanceof PieceTableDocument doc
+                ? new MatchHighlighter(area, doc, status) : null;
+        Runnable updateHighlights = highlighter == null ? null : () ->
+                highlighter.setQuery(highlightAll.isSelected() ? currentSearcher.get() : null);
+        if (highlighter != null) {
+            findField.getDocument().addDocumentListener(new DocumentListener() {
+                public void insertUpdate(DocumentEvent e) {
+                    updateHighlights.run();
+                }
+
+                public void removeUpdate(DocumentEvent e) {
+                    updateHighlights.run();
+                }
+
+                public void changedUpdate(DocumentEvent e) {
+                }
+            });
+            matchCase.addActionListener(e -> updateHighlights.run());
+            regex.addActionListener(e -> updateHighlights.run());
+            highlightAll.addActionListener(e -> updateHighlights.run());
+        }
+
+        ReplaceAllJob[] running = {null};
         ActionListener doReplaceAll = e -> {
-            String find = findField.getText();
-            if (find.isEmpty()) return;
-            String replacement = replaceField.getText();
-            String content = area.getText();
-            if (matchCase.isSelected()) content = content.replace(find, replacement);
-            else {
-                content = replaceIgnoreCase(content, find, replacement);
+            if (running[0] != null) {
+                running[0].stop();
+                return;
             }
-            area.setText(content);
+            Searcher finder = currentSearcher.get();
+            if (finder == null) return;
+            if (!(area.getDocument() instanceof PieceTableDocument doc)) return;
+            EditHistory history = getCurrentHistory();
+            if (history == null) return;
+            replaceAll.setText("Cancel");
+            // keeping a million highlights in step with a million edits is wasted work
+            if (highlighter != null) highlighter.setQuery(null);
+            running[0] = new ReplaceAllJob(area, doc, history, finder, replaceField.getText(), status, () -> {
+                running[0] = null;
+                replaceAll.setText("Replace All");
+                if (updateHighlights != null) updateHighlights.run();
+            });
+            running[0].execute();
         };
 
         findNext.addActionListener(doFindNext);
@@ -806,80 +1389,533 @@ public class AdvancedNotepad extends JFrame {
         replace.addActionListener(doReplace);
         replaceAll.addActionListener(doReplaceAll);
         close.addActionListener(e -> d.dispose());
+        d.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                if (running[0] != null) running[0].stop();
+                if (highlighter != null) highlighter.dispose();
+            }
+        });
 
         d.setVisible(true);
     }
 
-    private static String replaceIgnoreCase(String source, String target, String replacement) {
-        StringBuilder sb = new StringBuilder();
-        String lowerSource = source.toLowerCase();
-        String lowerTarget = target.toLowerCase();
-        int idx = 0;
-        int found;
-        while ((found = lowerSource.indexOf(lowerTarget, idx)) != -1) {
-            sb.append(source, idx, found);
-            sb.append(replacement);
-            idx = found + target.length();
-        }
-        sb.append(source.substring(idx));
-        return sb.toString();
-    }
-
-    // -------------------- Print / Export --------------------
-    private void showPrintExportDialog() {
-        Optional<JTextArea> maybe = getCurrentTextArea();
-        if (maybe.isEmpty()) return;
-        JTextArea area = maybe.get();
-
-        Object[] options = {"Print...", "Export to PDF (use system PDF printer)", "Cancel"};
-        int choice = JOptionPane.showOptionDialog(this,
-                "Print or export the current document. On many systems 'Print' allows choosing a 'Save as PDF' target.",
-                "Print / Export",
-                JOptionPane.YES_NO_CANCEL_OPTION,
-                JOptionPane.QUESTION_MESSAGE,
-                null, options, options[0]);
-
-        if (choice == JOptionPane.CANCEL_OPTION || choice == JOptionPane.CLOSED_OPTION) return;
-        try {
-            boolean showPrintDialog = (choice == 0);
-            boolean interactive = true;
-            area.print(null, null, showPrintDialog, null, null, interactive);
-        } catch (PrinterException ex) {
-            JOptionPane.showMessageDialog(this, "Printing error: " + ex.getMessage());
-        }
-    }
-
-    // -------------------- Font chooser --------------------
-    private void showFontChooser() {
-        Optional<JTextArea> maybe = getCurrentTextArea();
-        if (maybe.isEmpty()) return;
-        JTextArea area = maybe.get();
-
-        Font current = area.getFont();
-        JDialog d = new JDialog(this, "Choose Font", true);
-        d.setSize(520, 360);
+    // -------------------- Find in Files --------------------
+    private void showFindInFilesDialog() {
+        JDialog d = new JDialog(this, "Find in Files", false);
+        d.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+        d.setSize(760, 520);
         d.setLocationRelativeTo(this);
         d.setLayout(new BorderLayout(10, 10));
         d.getContentPane().setBackground(getBg());
 
-        java.awt.GraphicsEnvironment ge = java.awt.GraphicsEnvironment.getLocalGraphicsEnvironment();
-        String[] fonts = ge.getAvailableFontFamilyNames();
-
-        JComboBox<String> fontBox = new JComboBox<>(fonts);
+        JPanel top = new JPanel(new GridLayout(3, 2, 8, 8));
+        top.setOpaque(false);
+        JLabel dirLbl = new JLabel("Directory:");
+        dirLbl.setForeground(getFg());
+        EditorSession selected = sessions.get(tabs.getSelectedComponent());
+        File current = selected == null ? null : selected.file;
+        File startDir = current != null && current.getParentFile() != null
+                ? current.getParentFile() : new File(System.getProperty("user.dir"));
+        JTextField dirField = new JTextField(startDir.getAbsolutePath());
+        JLabel findLbl = new JLabel("Find:");
+        findLbl.setForeground(getFg());
+        JTextField findField = new JTextField();
+        getCurrentTextArea().map(JTextArea::getSelectedText)
+                .filter(s -> !s.contains("\n")).ifPresent(findField::setText);
+        JLabel filterLbl = new JLabel("File names:");
+        filterLbl.setForeground(getFg());
+        JTextField filterField = new JTextField();
+        filterField.setToolTipText("Comma-separated globs such as *.conf, *.log; empty searches every text file");
+        for (JTextField f : List.of(dirField, findField, filterField)) {
+            f.setBackground(fieldBg);
+            f.setForeground(getFg());
+            f.setCaretColor(getFg());
+        }
+        GradientButton browse = new GradientButton("Browse...");
+        JPanel dirRow = new JPanel(new BorderLayout(6, 0));
+        dirRow.setOpaque(false);
+        dirRow.add(dirField, BorderLayout.CENTER);
+        dirRow.add(browse, BorderLayout.EAST);
+        top.add(dirLbl);
+        top.add(dirRow);
+        top.add(findLbl);
+        top.add(findField);
+        top.add(filterLbl);
+        top.add(filterField);
+
+        JPanel options = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        options.setOpaque(false);
+        JCheckBox matchCase = new JCheckBox("Match case");
+        matchCase.setOpaque(false);
+        matchCase.setForeground(getFg());
+        options.add(matchCase);
+        JCheckBox regex = new JCheckBox("Regex");
+        regex.setOpaque(false);
+        regex.setForeground(getFg());
+        options.add(regex);
+        JLabel status = new JLabel(" ");
+        status.setForeground(getFg());
+        options.add(status);
+
+        Path[] base = {startDir.toPath()};
+        DefaultListModel<FileSearch.Hit> model = new DefaultListModel<>();
+        JList<FileSearch.Hit> results = new JList<>(model);
+        results.setPrototypeCellValue(new FileSearch.Hit(startDir, 1, 0, 0, "x".repeat(80)));
+        results.setBackground(themed(p -> p.listBg));
+        results.setForeground(getFg());
+        results.setFont(new Font("Consolas", Font.PLAIN, 13));
+        results.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean selected, boolean focused) {
+                super.getListCellRendererComponent(list, value, index, selected, focused);
+                if (value instanceof FileSearch.Hit hit) {
+                    Path p = hit.file().toPath();
+                    String name = p.startsWith(base[0]) ? base[0].relativize(p).toString() : p.toString();
+                    setText(name + ":" + hit.line() + ": " + hit.preview());
+                }
+                return this;
+            }
+        });
+        JScrollPane resultsPane = new JScrollPane(results);
+        resultsPane.setBorder(BorderFactory.createEmptyBorder());
+
+        JPanel center = new JPanel(new BorderLayout());
+        center.setOpaque(false);
+        center.add(options, BorderLayout.NORTH);
+        center.add(resultsPane, BorderLayout.CENTER);
+
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttons.setOpaque(false);
+        GradientButton search = new GradientButton("Search");
+        GradientButton close = new GradientButton("Close");
+        buttons.add(search);
+        buttons.add(close);
+
+        JPanel content = new JPanel(new BorderLayout(10, 10));
+        content.setOpaque(false);
+        content.setBorder(new EmptyBorder(10, 10, 0, 10));
+        content.add(top, BorderLayout.NORTH);
+        content.add(center, BorderLayout.CENTER);
+        d.add(content, BorderLayout.CENTER);
+        d.add(buttons, BorderLayout.SOUTH);
+
+        browse.addActionListener(e -> {
+            JFileChooser chooser = new JFileChooser(dirField.getText());
+            chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+            if (chooser.showOpenDialog(d) == JFileChooser.APPROVE_OPTION) {
+                dirField.setText(chooser.getSelectedFile().getAbsolutePath());
+            }
+        });
+
+        FileSearch[] running = {null};
+        ActionListener doSearch = e -> {
+            if (running[0] != null) {
+                running[0].stop();
+                return;
+            }
+            String find = findField.getText();
+            if (find.isEmpty()) return;
+            File root = new File(dirField.getText().trim());
+            if (!root.isDirectory()) {
+                status.setText("Not a directory");
+                Toolkit.getDefaultToolkit().beep();
+                return;
+            }
+            Searcher searcher;
+            try {
+                searcher = regex.isSelected()
+                        ? RegexSearcher.compile(find, matchCase.isSelected(), RegexSearcher.BACKGROUND_BUDGET_NANOS)
+                        : new TextSearcher(find, matchCase.isSelected());
+            } catch (PatternSyntaxException ex) {
+                status.setText("Invalid pattern: " + ex.getDescription());
+                return;
+            }
+            model.clear();
+            base[0] = root.toPath().toAbsolutePath();
+            FileSearch fs = new FileSearch(root, searcher, filterField.getText());
+            running[0] = fs;
+            search.setText("Cancel");
+            status.setText("Searching...");
+            long started = System.nanoTime();
+            // hits arrive from every worker thread; the EDT picks them up in batches
+            Queue<FileSearch.Hit> arrived = new ConcurrentLinkedQueue<>();
+            AtomicBoolean flushScheduled = new AtomicBoolean();
+            Runnable flush = () -> {
+                flushScheduled.set(false);
+                List<FileSearch.Hit> batch = new ArrayList<>();
+                FileSearch.Hit hit;
+                while ((hit = arrived.poll()) != null) batch.add(hit);
+                if (running[0] == fs) {
+                    model.addAll(batch);
+                    status.setText(String.format("Searching... %,d matches in %,d files", model.size(), fs.filesScanned()));
+                }
+            };
+            new SwingWorker<Void, Void>() {
+                @Override
+                protected Void doInBackground() {
+                    fs.run(hit -> {
+                        arrived.add(hit);
+                        if (flushScheduled.compareAndSet(false, true)) SwingUtilities.invokeLater(flush);
+                    });
+                    return null;
+                }
+
+                @Override
+                protected void done() {
+                    flush.run();
+                    if (running[0] != fs) return;
+                    running[0] = null;
+                    search.setText("Search");
+                    long ms = (System.nanoTime() - started) / 1_000_000;
+                    String summary = String.format("%,d matches in %,d of %,d files (%,d MB) in %,d ms",
+                            model.size(), fs.filesMatched(), fs.filesScanned(), fs.bytesScanned() >> 20, ms);
+                    if (fs.truncated()) summary = "First " + summary;
+                    else if (fs.stopped()) summary = "Cancelled: " + summary;
+                    status.setText(summary);
+                }
+            }.execute();
+        };
+
+        Runnable openSelected = () -> {
+            FileSearch.Hit hit = results.getSelectedValue();
+            if (hit != null) openHit(hit);
+        };
+        results.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) openSelected.run();
+            }
+        });
+        results.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_ENTER, 0), "open-hit");
+        results.getActionMap().put("open-hit", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                openSelected.run();
+            }
+        });
+
+        findField.addActionListener(doSearch);
+        search.addActionListener(doSearch);
+        close.addActionListener(e -> d.dispose());
+        d.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                if (running[0] != null) running[0].stop();
+            }
+        });
+
+        d.setVisible(true);
+    }
+
+    /** Opens (or switches to) the hit's file and selects the match once the text is in. */
+    private void openHit(FileSearch.Hit hit) {
+        EditorSession session = sessions.find(hit.file());
+        if (session == null) {
+            createNewTab(hit.file(), null);
+            session = sessions.find(hit.file());
+            if (session == null) return; // the file could not be opened
+        }
+        tabs.setSelectedComponent(session.tab);
+        // read after selecting, which gives a tab reopened from the last session its editor
+        Component target = session.tab;
+        DocumentLoader loader = session.loader;
+        if (loader != null) loader.onLoaded(() -> revealHit(target, hit));
+        else revealHit(target, hit);
+    }
+
+    private void revealHit(Component tab, FileSearch.Hit hit) {
+        if (!(tab instanceof JScrollPane sp)) return;
+        Component view = sp.getViewport().getView();
+        if (view instanceof LargeFileView lfv) {
+            lfv.scrollToLine(hit.line() - 1);
+            return;
+        }
+        if (!(view instanceof JTextArea area)) return;
+        EditorSession session = sessions.get(tab);
+        LineIndex index = session == null ? null : session.lines;
+        if (index == null) return;
+        // the file may have changed since it was searched, so clamp rather than trust the hit
+        int line = Math.min(hit.line(), index.lineCount()) - 1;
+        int start = index.lineStart(line) + Math.min(hit.column(), index.lineLength(line));
+        int end = Math.min(start + hit.length(), area.getDocument().getLength());
+        area.requestFocusInWindow();
+        area.select(start, end);
+    }
+
+    /**
+     * Searches every text file under a directory with one of the Find & Replace searchers.
+     * Directories are walked as fork/join tasks on a pool sized to the machine, so listing,
+     * reading and matching all overlap; larger files are memory-mapped rather than copied
+     * through a stream. Each worker thread gets its own searcher copy and decoder, and hits
+     * are handed to the sink from whichever thread found them.
+     */
+    private static final class FileSearch {
+        static final int MAX_HITS = 100_000;
+        private static final int MAP_THRESHOLD = 64 * 1024; // below this a plain read is cheaper than a mapping
+        private static final long MAX_FILE_BYTES = 256L * 1024 * 1024;
+        private static final long BIG_FILE_BYTES = 16L * 1024 * 1024;
+        private static final int BINARY_PROBE = 8 * 1024;
+        private static final int PREVIEW_CHARS = 200;
+
+        record Hit(File file, int line, int column, int length, String preview) {
+        }
+
+        private final File root;
+        private final List<PathMatcher> nameFilters = new ArrayList<>();
+        private final ThreadLocal<Searcher> searchers;
+        private final ThreadLocal<CharsetDecoder> decoders = ThreadLocal.withInitial(() -> Charset.defaultCharset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE));
+        private final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        private final AtomicBoolean stopped = new AtomicBoolean();
+        private final AtomicInteger hits = new AtomicInteger();
+        private final AtomicInteger filesScanned = new AtomicInteger();
+        private final AtomicInteger filesMatched = new AtomicInteger();
+        private final AtomicLong bytesScanned = new AtomicLong();
+        private volatile boolean truncated;
+        private final Object bigFileLock = new Object();
+        private Consumer<Hit> sink;
+
+        FileSearch(File root, Searcher searcher, String globs) {
+            this.root = root;
+            this.searchers = ThreadLocal.withInitial(searcher::copy);
+            for (String glob : globs.split("[,;]")) {
+                if (!glob.isBlank()) nameFilters.add(FileSystems.getDefault().getPathMatcher("glob:" + glob.trim()));
+            }
+        }
+
+        /** Walks the tree and blocks until every file has been searched or the search is stopped. */
+        void run(Consumer<Hit> sink) {
+            this.sink = sink;
+            try {
+                pool.invoke(new DirectoryTask(root));
+            } catch (CancellationException ignored) {
+                // stopped
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        void stop() {
+            stopped.set(true);
+            pool.shutdownNow();
+        }
+
+        boolean stopped() {
+            return stopped.get();
+        }
+
+        boolean truncated() {
+            return truncated;
+        }
+
+        int filesScanned() {
+            return filesScanned.get();
+        }
+
+        int filesMatched() {
+            return filesMatched.get();
+        }
+
+        long bytesScanned() {
+            return bytesScanned.get();
+        }
+
+        private boolean accepts(File file) {
+            if (nameFilters.isEmpty()) return true;
+            Path name = file.toPath().getFileName();
+            for (PathMatcher m : nameFilters) {
+                if (m.matches(name)) return true;
+            }
+            return false;
+        }
+
+        private final class DirectoryTask extends RecursiveAction {
+            private final File dir;
+
+            DirectoryTask(File dir) {
+                this.dir = dir;
+            }
+
+            @Override
+            protected void compute() {
+                File[] children = dir.listFiles();
+                if (children == null || stopped.get()) return;
+                List<RecursiveAction> tasks = new ArrayList<>(children.length);
+                for (File child : children) {
+                    // dot directories are VCS metadata and caches, and symlinks could loop
+                    if (child.getName().startsWith(".") || Files.isSymbolicLink(child.toPath())) continue;
+                    if (child.isDirectory()) {
+                        tasks.add(new DirectoryTask(child));
+                    } else if (accepts(child)) {
+                        tasks.add(new RecursiveAction() {
+                            @Override
+                            protected void compute() {
+                                searchFile(child);
+                            }
+                        });
+                    }
+                }
+                invokeAll(tasks);
+            }
+        }
+
+        private void searchFile(File file) {
+            if (file.length() > BIG_FILE_BYTES) {
+                // a decoded file takes twice its size in heap, so only one big file at a time
+                synchronized (bigFileLock) {
+                    searchText(file);
+                }
+            } else {
+                searchText(file);
+            }
+        }
+
+        private void searchText(File file) {
+            if (stopped.get()) return;
+            CharBuffer text;
+            try {
+                text = read(file);
+            } catch (IOException | UncheckedIOException ex) {
+                return; // unreadable files are skipped, as grep would
+            }
+            if (text == null) return;
+            filesScanned.incrementAndGet();
+            Searcher searcher = searchers.get();
+            int limit = text.length();
+            int line = 1, lineStart = 0, counted = 0;
+            boolean matched = false;
+            try {
+                for (int from = 0; from <= limit && !stopped.get(); ) {
+                    int start = searcher.find(text, from, limit);
+                    if (start < 0) break;
+                    int end = searcher.end();
+                    from = end > start ? end : start + 1;
+                    if (end == start) continue; // an empty match has nothing to show
+                    for (; counted < start; counted++) {
+                        char c = text.get(counted);
+                        if (c == '\n' || c == '\r' && (counted + 1 == limit || text.get(counted + 1) != '\n')) {
+                            line++;
+                            lineStart = counted + 1;
+                        }
+                    }
+                    // the editor reads CRLF as one character, so a match across one is a char shorter there
+                    int length = end - start;
+                    for (int i = start; i + 1 < end; i++) {
+                        if (text.get(i) == '\r' && text.get(i + 1) == '\n') length--;
+                    }
+                    matched = true;
+                    if (hits.incrementAndGet() > MAX_HITS) {
+                        truncated = true;
+                        stopped.set(true);
+                        break;
+                    }
+                    sink.accept(new Hit(file, line, start - lineStart, length, preview(text, lineStart, start)));
+                }
+            } catch (SearchTimeoutException ex) {
+                // a pathological pattern on this file; the others still get searched
+            }
+            if (matched) filesMatched.incrementAndGet();
+        }
+
+        private CharBuffer read(File file) throws IOException {
+            try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = ch.size();
+                if (size == 0 || size > MAX_FILE_BYTES) return null;
+                ByteBuffer bytes;
+                if (size < MAP_THRESHOLD) {
+                    bytes = ByteBuffer.allocate((int) size);
+                    while (bytes.hasRemaining() && ch.read(bytes) >= 0) {
+                        // keep reading
+                    }
+                    bytes.flip();
+                } else {
+                    bytes = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                }
+                int probe = Math.min(bytes.limit(), BINARY_PROBE);
+                for (int i = 0; i < probe; i++) {
+                    if (bytes.get(i) == 0) return null; // binary
+                }
+                bytesScanned.addAndGet(size);
+                return decoders.get().decode(bytes);
+            }
+        }
+
+        private static String preview(CharBuffer text, int lineStart, int matchStart) {
+            // keep some context before a match deep in a long line
+            int from = matchStart - lineStart > PREVIEW_CHARS / 2 ? matchStart - 40 : lineStart;
+            int to = from;
+            int max = Math.min(text.length(), from + PREVIEW_CHARS);
+            while (to < max && text.get(to) != '\n' && text.get(to) != '\r') to++;
+            return text.subSequence(from, to).toString().strip();
+        }
+    }
+
+    // -------------------- Print / Export --------------------
+    private void showPrintExportDialog() {
+        Optional<JTextArea> maybe = getCurrentTextArea();
+        if (maybe.isEmpty()) return;
+        JTextArea area = maybe.get();
+
+        Object[] options = {"Print...", "Export to PDF (use system PDF printer)", "Cancel"};
+        int choice = JOptionPane.showOptionDialog(this,
+                "Print or export the current document. On many systems 'Print' allows choosing a 'Save as PDF' target.",
+                "Print / Export",
+                JOptionPane.YES_NO_CANCEL_OPTION,
+                JOptionPane.QUESTION_MESSAGE,
+                null, options, options[0]);
+
+        if (choice == JOptionPane.CANCEL_OPTION || choice == JOptionPane.CLOSED_OPTION) return;
+        try {
+            boolean showPrintDialog = (choice == 0);
+            boolean interactive = true;
+            area.print(null, null, showPrintDialog, null, null, interactive);
+        } catch (PrinterException ex) {
+            JOptionPane.showMessageDialog(this, "Printing error: " + ex.getMessage());
+        }
+    }
+
+    // -------------------- Font chooser --------------------
+    /** The installed font families, listed once when the class is first used. */
+    private static final class FontFamilies {
+        static final String[] NAMES = GraphicsEnvironment.getLocalGraphicsEnvironment().getAvailableFontFamilyNames();
+
+        /**
+         * Returns the family names. The list is built when the class is initialized, so the
+         * first call builds it on the calling thread and later calls return it at once.
+         */
+        static String[] preload() {
+            return NAMES;
+        }
+    }
+
+    private void showFontChooser() {
+        Optional<JTextArea> maybe = getCurrentTextArea();
+        if (maybe.isEmpty()) return;
+        JTextArea area = maybe.get();
+
+        Font current = area.getFont();
+        JDialog d = new JDialog(this, "Choose Font", true);
+        d.setSize(520, 360);
+        d.setLocationRelativeTo(this);
+        d.setLayout(new BorderLayout(10, 10));
+        d.getContentPane().setBackground(getBg());
+
+        JComboBox<String> fontBox = new JComboBox<>(FontFamilies.NAMES);
         fontBox.setSelectedItem(current.getFamily());
-        fontBox.setBackground(darkMode ? new Color(40, 42, 46) : Color.WHITE);
+        fontBox.setBackground(fieldBg);
         fontBox.setForeground(getFg());
 
         Integer[] sizes = {10, 11, 12, 13, 14, 16, 18, 20, 22, 24, 28, 32, 36};
         JComboBox<Integer> sizeBox = new JComboBox<>(sizes);
         sizeBox.setSelectedItem(current.getSize());
-        sizeBox.setBackground(darkMode ? new Color(40, 42, 46) : Color.WHITE);
+        sizeBox.setBackground(fieldBg);
         sizeBox.setForeground(getFg());
 
         String[] styles = {"Plain", "Bold", "Italic", "Bold Italic"};
         JComboBox<String> styleBox = new JComboBox<>(styles);
         styleBox.setSelectedIndex(fontStyleToIndex(current.getStyle()));
-        styleBox.setBackground(darkMode ? new Color(40, 42, 46) : Color.WHITE);
+        styleBox.setBackground(fieldBg);
         styleBox.setForeground(getFg());
 
         JLabel preview = new JLabel("AaBbCc – The quick brown fox jumps over the lazy dog");
@@ -960,7 +1996,7 @@ public class AdvancedNotepad extends JFrame {
 
         JPanel panel = new JPanel(new BorderLayout(8, 8));
         panel.setBackground(getBg());
-        JLabel lbl = new JLabel("<html><div style='padding:6px; color:" + (darkMode ? "#E6E6E6" : "#111111") +
+        JLabel lbl = new JLabel("<html><div style='padding:6px; color:" + (palette().dark ? "#E6E6E6" : "#111111") +
                 "'><b>AdvancedNotepad</b><br/>" + course + "<br/><br/>Created by:<br/>" + developerName + "<br/>" + "</div></html>");
         lbl.setBorder(new EmptyBorder(10, 10, 10, 10));
         panel.add(lbl, BorderLayout.CENTER);
@@ -968,28 +2004,126 @@ public class AdvancedNotepad extends JFrame {
         JOptionPane.showMessageDialog(this, panel, "About AdvancedNotepad", JOptionPane.PLAIN_MESSAGE);
     }
 
+    // -------------------- Animation scheduler --------------------
+    /**
+     * The one clock behind the UI's animations (the caret's colour cycle, hover fades). An
+     * animation is started when it has something to do and drops out by returning false
+     * from a frame; the timer runs at the shortest interval among the running ones and
+     * stops when there are none, or while the window is inactive.
+     */
+    private static final class AnimationScheduler {
+        /** One frame of an animation; returns whether it wants more. */
+        interface Animation {
+            boolean frame();
+        }
+
+        private static final class Entry {
+            final Animation animation;
+            final int interval;
+            long due;
+
+            Entry(Animation animation, int interval, long due) {
+                this.animation = animation;
+                this.interval = interval;
+                this.due = due;
+            }
+        }
+
+        private final List<Entry> running = new ArrayList<>();
+        private final javax.swing.Timer timer = new javax.swing.Timer(0, e -> tick());
+        private boolean paused;
+
+        AnimationScheduler() {
+            timer.setCoalesce(true);
+        }
+
+        /** Runs an animation every {@code interval} ms until it returns false or is stopped; a no-op if running. */
+        void start(Animation animation, int interval) {
+            for (Entry e : running) {
+                if (e.animation == animation) return;
+            }
+            running.add(new Entry(animation, interval, System.nanoTime()));
+            reschedule();
+        }
+
+        void stop(Animation animation) {
+            running.removeIf(e -> e.animation == animation);
+            reschedule();
+        }
+
+        void setPaused(boolean paused) {
+            this.paused = paused;
+            reschedule();
+        }
+
+        private void tick() {
+            long now = System.nanoTime();
+            for (Entry e : new ArrayList<>(running)) {
+                if (now - e.due < 0) continue;
+                e.due = now + e.interval * 1_000_000L;
+                if (!e.animation.frame()) running.remove(e);
+            }
+            reschedule();
+        }
+
+        private void reschedule() {
+            if (paused || running.isEmpty()) {
+                timer.stop();
+                return;
+            }
+            int delay = Integer.MAX_VALUE;
+            for (Entry e : running) delay = Math.min(delay, e.interval);
+            timer.setDelay(delay);
+            if (!timer.isRunning()) timer.start();
+        }
+    }
+
     // -------------------- Animated caret --------------------
     private static class AnimatedCaret extends DefaultCaret {
-        private final javax.swing.Timer t;
-        private float hue = 0f;
+        private static final int HUES = 50;
+        private static final Color[] HEAD = new Color[HUES], TAIL = new Color[HUES];
+
+        static {
+            for (int i = 0; i < HUES; i++) {
+                float hue = i / (float) HUES;
+                HEAD[i] = Color.getHSBColor(hue, 0.9f, 1f);
+                TAIL[i] = Color.getHSBColor((hue + 0.5f) % 1f, 0.8f, 0.9f);
+            }
+        }
 
-        AnimatedCaret() {
+        private final AnimationScheduler animations;
+        private final AnimationScheduler.Animation cycle;
+        private int hue;
+        // one gradient per hue, built for the caret height they were last painted at
+        private final GradientPaint[] paints = new GradientPaint[HUES];
+        private int paintHeight = -1;
+
+        AnimatedCaret(AnimationScheduler animations) {
             setBlinkRate(400);
-            t = new javax.swing.Timer(80, e -> {
-                hue += 0.02f;
-                if (hue > 1f) hue = 0f;
-                JTextComponent c = getComponent();
-                if (c != null) {
-                    try {
-                        Shape s = c.modelToView2D(getDot());
-                        if (s != null) {
-                            Rectangle r = s.getBounds();
-                            c.repaint(r);
-                        }
-                    } catch (BadLocationException ignored) {}
-                }
-            });
-            t.start();
+            this.animations = animations;
+            cycle = () -> {
+                hue = (hue + 1) % HUES;
+                // the caret's own bounds follow the dot (see paint), so no layout query here
+                if (getComponent() != null) repaint();
+                return true;
+            };
+        }
+
+        // only the focused caret cycles its colour
+        @Override
+        public void focusGained(FocusEvent e) {
+            super.focusGained(e);
+            animations.start(cycle, 80);
+        }
+
+        @Override
+        public void focusLost(FocusEvent e) {
+            super.focusLost(e);
+            animations.stop(cycle);
+        }
+
+        void dispose() {
+            animations.stop(cycle);
         }
 
         @Override
@@ -1000,37 +2134,51 @@ public class AdvancedNotepad extends JFrame {
                 Shape s = comp.modelToView2D(getDot());
                 if (s == null) return;
                 Rectangle r = s.getBounds();
-                Graphics2D g2 = (Graphics2D) g.create();
+                Graphics2D g2 = (Graphics2D) g;
                 int cw = 2;
                 int ch = r.height;
                 int cx = r.x;
                 int cy = r.y;
-                Color c1 = Color.getHSBColor(hue, 0.9f, 1f);
-                Color c2 = Color.getHSBColor((hue + 0.5f) % 1f, 0.8f, 0.9f);
-                GradientPaint gp = new GradientPaint(cx, cy, c1, cx + cw, cy + ch, c2);
+                // re-sync the repaint bounds if layout moved the caret without moving the dot
+                if (!contains(cx, cy, cw, ch)) damage(r);
+                if (ch != paintHeight) {
+                    Arrays.fill(paints, null);
+                    paintHeight = ch;
+                }
+                GradientPaint gp = paints[hue];
+                if (gp == null) paints[hue] = gp = new GradientPaint(0, 0, HEAD[hue], cw, ch, TAIL[hue]);
+                Paint old = g2.getPaint();
+                g2.translate(cx, cy);
                 g2.setPaint(gp);
-                g2.fillRect(cx, cy, cw, ch);
-                g2.dispose();
+                g2.fillRect(0, 0, cw, ch);
+                g2.translate(-cx, -cy);
+                g2.setPaint(old);
             } catch (BadLocationException ignored) {}
         }
 
         @Override
         public void deinstall(JTextComponent c) {
             super.deinstall(c);
-            t.stop();
+            dispose();
         }
     }
 
     // -------------------- Gradient button --------------------
     private class GradientButton extends JButton {
+        private static final Background.Painter PAINTER = (g, p, w, h, state) -> {
+            g.setColor(state == 1 ? p.buttonHoverBg : p.buttonBg);
+            g.fill(new RoundRectangle2D.Float(0, 0, w, h, 12, 12));
+        };
+
         private boolean hover = false;
+        private final Background background = new Background(PAINTER, 2);
 
         GradientButton(String text) {
             super(text);
             setContentAreaFilled(false);
             setFocusPainted(false);
             setBorder(BorderFactory.createEmptyBorder(6, 10, 6, 10));
-            setForeground(darkMode ? new Color(245, 245, 245) : new Color(25, 25, 25));
+            setForeground(themed(p -> p.buttonFg));
             setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
             setFont(getFont().deriveFont(Font.PLAIN, 13f));
 
@@ -1041,70 +2189,71 @@ public class AdvancedNotepad extends JFrame {
         }
 
         @Override protected void paintComponent(Graphics g) {
-            Graphics2D g2 = (Graphics2D) g.create();
             int w = getWidth(), h = getHeight();
-            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-            RoundRectangle2D.Float rr = new RoundRectangle2D.Float(0, 0, w, h, 12, 12);
-
-            Color base = darkMode ? new Color(70, 70, 80) : new Color(220, 220, 220);
-            Color hov = darkMode ? new Color(90, 90, 100) : new Color(200, 200, 200);
-            g2.setColor(hover ? hov : base);
-            g2.fill(rr);
+            background.paint(g, palette(), w, h, hover ? 1 : 0);
 
-            FontMetrics fm = g2.getFontMetrics();
+            g.setFont(getFont());
+            FontMetrics fm = g.getFontMetrics();
             int tw = fm.stringWidth(getText());
             int th = fm.getAscent();
-            g2.setColor(getForeground());
-            g2.setFont(getFont());
-            g2.drawString(getText(), (w - tw) / 2, (h + th) / 2 - 2);
-
-            g2.dispose();
+            g.setColor(getForeground());
+            g.drawString(getText(), (w - tw) / 2, (h + th) / 2 - 2);
         }
     }
 
     // -------------------- Hover panel --------------------
     private class HoverPanel extends JPanel {
         private float highlight = 0f;
-        private final javax.swing.Timer anim;
         private boolean targetHover = false;
+        private final AnimationScheduler.Animation fade = () -> {
+            if (targetHover && highlight < 0.16f) {
+                highlight = Math.min(0.16f, highlight + 0.02f);
+                repaint();
+            } else if (!targetHover && highlight > 0f) {
+                highlight = Math.max(0f, highlight - 0.02f);
+                repaint();
+            }
+            return targetHover ? highlight < 0.16f : highlight > 0f;
+        };
 
         HoverPanel() {
             setOpaque(true);
-            anim = new javax.swing.Timer(20, e -> {
-                if (targetHover && highlight < 0.16f) {
-                    highlight = Math.min(0.16f, highlight + 0.02f);
-                    repaint();
-                } else if (!targetHover && highlight > 0f) {
-                    highlight = Math.max(0f, highlight - 0.02f);
-                    repaint();
-                }
-            });
-            anim.start();
-
             addMouseListener(new MouseAdapter() {
-                @Override public void mouseEntered(MouseEvent e) { targetHover = true; }
-                @Override public void mouseExited(MouseEvent e) { targetHover = false; }
+                @Override public void mouseEntered(MouseEvent e) { targetHover = true; animations.start(fade, 20); }
+                @Override public void mouseExited(MouseEvent e) { targetHover = false; animations.start(fade, 20); }
             });
         }
 
         @Override protected void paintComponent(Graphics g) {
             super.paintComponent(g);
             if (highlight > 0f) {
-                Graphics2D g2 = (Graphics2D) g.create();
-                g2.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, highlight));
-                if (darkMode) g2.setColor(new Color(255, 255, 255, 30));
-                else g2.setColor(new Color(0, 0, 0, 30));
-                g2.fillRect(0, 0, getWidth(), getHeight());
-                g2.dispose();
+                g.setColor(palette().wash[Math.round(highlight / 0.02f)]);
+                g.fillRect(0, 0, getWidth(), getHeight());
             }
         }
     }
 
     // -------------------- Modern Tab Header + Close Button --------------------
     private class TabCloseButton extends JButton {
+        // one state per step of the hover fade
+        private static final Background.Painter PAINTER = (g, p, w, h, state) -> {
+            g.setColor(p.closeHover[state]);
+            g.fillOval(2, 2, w - 4, h - 4);
+        };
+
         private boolean hover = false;
         private float hoverAlpha = 0f;
-        private final javax.swing.Timer hoverTimer;
+        private final Background background = new Background(PAINTER, 11);
+        private final AnimationScheduler.Animation fade = () -> {
+            if (hover && hoverAlpha < 1f) {
+                hoverAlpha = Math.min(1f, hoverAlpha + 0.1f);
+                repaint();
+            } else if (!hover && hoverAlpha > 0f) {
+                hoverAlpha = Math.max(0f, hoverAlpha - 0.1f);
+                repaint();
+            }
+            return hover ? hoverAlpha < 1f : hoverAlpha > 0f;
+        };
 
         TabCloseButton() {
             super("×");
@@ -1115,152 +2264,5534 @@ public class AdvancedNotepad extends JFrame {
             setOpaque(false);
             setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
             setFont(getFont().deriveFont(Font.BOLD, 12f));
-            setForeground(new Color(200, 200, 200));
-
-            hoverTimer = new javax.swing.Timer(30, e -> {
-                if (hover && hoverAlpha < 1f) {
-                    hoverAlpha = Math.min(1f, hoverAlpha + 0.1f);
-                    repaint();
-                } else if (!hover && hoverAlpha > 0f) {
-                    hoverAlpha = Math.max(0f, hoverAlpha - 0.1f);
-                    repaint();
-                }
-            });
-            hoverTimer.start();
+            setForeground(themed(p -> p.closeFg));
 
             addMouseListener(new MouseAdapter() {
-                @Override public void mouseEntered(MouseEvent e) { hover = true; }
-                @Override public void mouseExited(MouseEvent e) { hover = false; }
+                @Override public void mouseEntered(MouseEvent e) { hover = true; animations.start(fade, 30); }
+                @Override public void mouseExited(MouseEvent e) { hover = false; animations.start(fade, 30); }
             });
         }
 
         @Override
         protected void paintComponent(Graphics g) {
-            Graphics2D g2 = (Graphics2D) g.create();
-            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
             int w = getWidth(), h = getHeight();
+            int step = Math.round(hoverAlpha * 10);
+            if (step > 0) background.paint(g, palette(), w, h, step);
+            g.setColor(hover ? Color.WHITE : getForeground());
 
-            g2.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, hoverAlpha));
-            g2.setColor(new Color(220, 60, 60));
-            g2.fillOval(2, 2, w - 4, h - 4);
-            g2.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 1f));
-            g2.setColor(hover ? Color.WHITE : getForeground());
-
-            FontMetrics fm = g2.getFontMetrics();
+            g.setFont(getFont());
+            FontMetrics fm = g.getFontMetrics();
             String txt = getText();
             int tw = fm.stringWidth(txt);
             int th = fm.getAscent();
-            g2.setFont(getFont());
-            g2.drawString(txt, (w - tw) / 2, (h + th) / 2 - 2);
-
-            g2.dispose();
+            g.drawString(txt, (w - tw) / 2, (h + th) / 2 - 2);
         }
     }
 
     private class TabHeader extends JPanel {
+        private static final Background.Painter PAINTER = (g, p, w, h, state) -> {
+            RoundRectangle2D.Float rr = new RoundRectangle2D.Float(0, 0, w - 1, h - 1, 14, 14);
+            if (state == 1) {
+                g.setPaint(new GradientPaint(0, 0, p.tabSelectedTop, 0, h, p.tabSelectedBottom));
+                g.fill(rr);
+                // Add subtle shadow for active tab
+                g.setColor(p.tabShadow);
+                g.fill(new RoundRectangle2D.Float(2, 2, w - 1, h + 2, 14, 14));
+            } else {
+                g.setPaint(new GradientPaint(0, 0, p.tabTop, 0, h, p.tabBottom));
+                g.fill(rr);
+            }
+        };
+
+        private final Background background = new Background(PAINTER, 2);
         private final JLabel titleLabel;
         private final TabCloseButton closeBtn;
-        private final Component contentRef;
         private boolean selected = false;
+        private float progress = -1f;
 
-        TabHeader(String title, Component content) {
+        TabHeader(String title) {
             super(new FlowLayout(FlowLayout.LEFT, 8, 6));
-            this.contentRef = content;
             setOpaque(false);
 
             titleLabel = new JLabel(title);
             titleLabel.setFont(titleLabel.getFont().deriveFont(Font.BOLD, 14f));
-            titleLabel.setForeground(getFg());
+            titleLabel.setForeground(themed(p -> selected ? p.strongFg : p.tabFg));
 
             closeBtn = new TabCloseButton();
-            closeBtn.addActionListener(e -> closeTab(contentRef));
+            // looked up on click, since a tab reopened from the last session swaps in its editor later
+            closeBtn.addActionListener(e -> {
+                int idx = tabs.indexOfTabComponent(this);
+                if (idx >= 0) closeTab(tabs.getComponentAt(idx));
+            });
 
             add(titleLabel);
             add(closeBtn);
             setBorder(new EmptyBorder(6, 10, 6, 10));
         }
 
+        void setTitle(String title) {
+            titleLabel.setText(title);
+            revalidate();
+        }
+
+        /** Shows a thin progress bar along the bottom edge; a negative value hides it. */
+        void setProgress(float p) {
+            if (p == progress) return;
+            progress = p;
+            repaint();
+        }
+
         void setSelected(boolean sel) {
+            if (sel == selected) return;
             this.selected = sel;
-            titleLabel.setForeground(sel ? (darkMode ? Color.WHITE : new Color(20,20,20)) : (darkMode ? getFg() : new Color(110,110,110)));
+            titleLabel.repaint();
             repaint();
         }
 
         @Override
         protected void paintComponent(Graphics g) {
-            Graphics2D g2 = (Graphics2D) g.create();
             int w = getWidth(), h = getHeight();
-            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-
-            RoundRectangle2D.Float rr = new RoundRectangle2D.Float(0, 0, w - 1, h - 1, 14, 14);
-
-            if (selected) {
-                GradientPaint gp = darkMode ?
-                        new GradientPaint(0, 0, new Color(78, 82, 110), 0, h, new Color(58, 62, 90)) :
-                        new GradientPaint(0, 0, new Color(220, 230, 250), 0, h, new Color(200, 210, 230));
-                g2.setPaint(gp);
-                g2.fill(rr);
-                // Add subtle shadow for active tab
-                g2.setColor(darkMode ? new Color(0, 0, 0, 100) : new Color(0, 0, 0, 50));
-                g2.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.3f));
-                g2.fill(new RoundRectangle2D.Float(2, 2, w - 1, h + 2, 14, 14));
-                g2.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 1f));
-            } else {
-                GradientPaint gp = darkMode ?
-                        new GradientPaint(0, 0, new Color(45, 47, 52), 0, h, new Color(35, 37, 42)) :
-                        new GradientPaint(0, 0, new Color(255, 255, 255), 0, h, new Color(245, 248, 255));
-                g2.setPaint(gp);
-                g2.fill(rr);
+            Palette p = palette();
+            background.paint(g, p, w, h, selected ? 1 : 0);
+
+            if (progress >= 0) {
+                int track = w - 20;
+                g.setColor(p.progressTrack);
+                g.fillRect(10, h - 5, track, 3);
+                g.setColor(p.progressBar);
+                g.fillRect(10, h - 5, Math.round(track * Math.min(1f, progress)), 3);
             }
 
-            g2.dispose();
             super.paintComponent(g);
         }
     }
 
-    // -------------------- Theme helpers --------------------
-    private Color getBg() { return darkMode ? new Color(18, 20, 23) : Color.WHITE; }
-    private Color getFg() { return darkMode ? new Color(235, 235, 240) : new Color(34, 34, 34); }
-    private Color getMenuBg() { return darkMode ? new Color(30, 32, 36) : new Color(240, 240, 240); }
-    private void applyTheme(JComponent comp) {
-        if (comp == null) return;
-        comp.setBackground(darkMode ? new Color(26, 28, 33) : Color.WHITE);
-        comp.setForeground(darkMode ? new Color(235, 235, 240) : Color.BLACK);
-        for (Component c : comp.getComponents()) {
-            if (c instanceof JComponent jc) {
-                jc.setBackground(darkMode ? new Color(26, 28, 33) : Color.WHITE);
-                jc.setForeground(darkMode ? new Color(235, 235, 240) : Color.BLACK);
-                applyTheme(jc);
-            }
+    // -------------------- Piece table document --------------------
+    /**
+     * PlainDocument whose text lives in a piece table instead of a gap buffer.
+     * Loaded text stays in read-only chunks and typed text is appended to add blocks,
+     * so an edit only splits pieces (O(log n)) and never moves the rest of the document.
+     */
+    private static class PieceTableDocument extends PlainDocument {
+        private static final int LOAD_CHUNK = 1 << 20;
+
+        private long generation;
+
+        PieceTableDocument() {
+            super(new PieceTableContent());
         }
-    }
 
-    private void toggleTheme() {
-        darkMode = !darkMode;
-        applyTheme((JComponent) getContentPane());
-        applyTheme(getJMenuBar());
-        Component[] comps = tabs.getComponents();
-        for (Component comp : comps) {
-            if (comp instanceof JScrollPane sp) {
-                Component view = sp.getViewport().getView();
-                if (view instanceof JTextArea area) {
-                    area.setBackground(getBg());
-                    area.setForeground(getFg());
-                    area.setCaretColor(getFg());
+        /** Bumped by every insert and remove; lets a background save tell whether it is still current. */
+        long generation() {
+            return generation;
+        }
+
+        @Override
+        protected void insertUpdate(DefaultDocumentEvent chng, AttributeSet attr) {
+            generation++;
+            super.insertUpdate(chng, attr);
+        }
+
+        @Override
+        protected void removeUpdate(DefaultDocumentEvent chng) {
+            generation++;
+            super.removeUpdate(chng);
+        }
+
+        /** The whole text as spans over arrays that are never written again, taken under the read lock. */
+        Span[] snapshot() {
+            readLock();
+            try {
+                return spans(0, getLength());
+            } finally {
+                readUnlock();
+            }
+        }
+
+        /** The text a remove event is reporting; only valid inside removeUpdate listeners. */
+        Span[] removedSpans() {
+            Span[] spans = ((PieceTableContent) getContent()).deleted;
+            return spans != null ? spans : new Span[0];
+        }
+
+        @Override
+        protected void fireRemoveUpdate(DocumentEvent e) {
+            try {
+                super.fireRemoveUpdate(e);
+            } finally {
+                ((PieceTableContent) getContent()).deleted = null;
+            }
+        }
+
+        /** Spans covering a range; callers must hold a lock (document listeners already do). */
+        Span[] spans(int offset, int length) {
+            return ((PieceTableContent) getContent()).slice(offset, length);
+        }
+
+        /**
+         * Reads the stream as original text (not undoable), normalising line ends the same
+         * way DefaultEditorKit.read does so that JTextArea.write restores them.
+         */
+        void read(Reader in, long sizeHint) throws IOException {
+            int chunkSize = (int) Math.max(4096, Math.min(LOAD_CHUNK, sizeHint + 1));
+            LineEndFilter lineEnds = new LineEndFilter();
+            while (true) {
+                char[] chunk = new char[chunkSize];
+                int n = fill(in, chunk);
+                if (n <= 0) break;
+                int out = lineEnds.filter(chunk, n);
+                if (out < chunk.length * 3 / 4) chunk = Arrays.copyOf(chunk, out);
+                appendOriginal(chunk, 0, out);
+                if (n < chunk.length) break;
+                chunkSize = LOAD_CHUNK;
+            }
+            putProperty(DefaultEditorKit.EndOfLineStringProperty, lineEnds.separator());
+        }
+
+        /** Rewrites CRLF and lone CR to LF in place, carrying a trailing CR over to the next chunk. */
+        static final class LineEndFilter {
+            private boolean lastWasCR, wasCR, wasCRLF;
+
+            int filter(char[] chunk, int n) {
+                int out = 0;
+                for (int i = 0; i < n; i++) {
+                    char c = chunk[i];
+                    if (lastWasCR) {
+                        lastWasCR = false;
+                        if (c == '\n') {
+                            wasCRLF = true;
+                            continue;
+                        }
+                        wasCR = true;
+                    }
+                    if (c == '\r') {
+                        lastWasCR = true;
+                        c = '\n';
+                    }
+                    chunk[out++] = c;
+                }
+                return out;
+            }
+
+            /** The line separator the text used, as DefaultEditorKit would record it. */
+            String separator() {
+                return wasCRLF ? "\r\n" : (wasCR || lastWasCR) ? "\r" : "\n";
+            }
+        }
+
+        static int fill(Reader in, char[] buf) throws IOException {
+            int n = 0;
+            while (n < buf.length) {
+                int r = in.read(buf, n, buf.length - n);
+                if (r < 0) break;
+                n += r;
+            }
+            return n;
+        }
+
+        /**
+         * Appends text that is owned by the document from now on (the array must not be
+         * modified afterwards). Fires a normal insert event but no undoable edit.
+         */
+        void appendOriginal(char[] buf, int start, int len) {
+            if (len <= 0) return;
+            writeLock();
+            try {
+                int offs = getLength();
+                ((PieceTableContent) getContent()).insert(offs, new Span[] {new Span(buf, start, len)});
+                DefaultDocumentEvent e = new DefaultDocumentEvent(offs, len, DocumentEvent.EventType.INSERT);
+                insertUpdate(e, null);
+                e.end();
+                fireInsertUpdate(e);
+            } finally {
+                writeUnlock();
+            }
+        }
+
+        /** A run of text inside one of the immutable backing arrays. */
+        static final class Span {
+            final char[] buf;
+            final int start;
+            final int len;
+
+            Span(char[] buf, int start, int len) {
+                this.buf = buf;
+                this.start = start;
+                this.len = len;
+            }
+        }
+
+        /** Treap node: one piece plus the total length of its subtree. */
+        private static final class Piece {
+            final char[] buf;
+            final int start;
+            int len;
+            int size;
+            final int prio;
+            Piece left, right;
+
+            Piece(char[] buf, int start, int len, int prio) {
+                this.buf = buf;
+                this.start = start;
+                this.len = len;
+                this.size = len;
+                this.prio = prio;
+            }
+        }
+
+        /**
+         * AbstractDocument.Content over a treap of pieces. Positions are kept in sorted
+         * blocks of marks whose base offsets are stored with a virtual gap (as GapContent
+         * does for single marks), so shifting them after an edit touches one block's marks
+         * plus the block headers between the previous and the current edit location.
+         */
+        private static final class PieceTableContent implements AbstractDocument.Content {
+            private static final int ADD_BLOCK = 16 * 1024;
+
+            private Piece root;
+            private char[] addBlock = new char[ADD_BLOCK];
+            private int addUsed;
+            private int seed = 0x2545F491;
+            private Piece splitLeft, splitMid, splitRight;
+            Span[] deleted; // text taken out by the last delete, until its event has been fired
+
+            private static final int MARK_BLOCK = 512;
+            private MarkBlock[] blocks = {new MarkBlock(0)};
+            private int blockCount = 1;
+            private long gapStart;
+            private long gapLength = 1L << 40;
+            private final ReferenceQueue<MarkPosition> deadMarks = new ReferenceQueue<>();
+            private int deadCount;
+
+            PieceTableContent() {
+                root = newPiece(new Span(new char[] {'\n'}, 0, 1));
+            }
+
+            // ---- AbstractDocument.Content ----
+            @Override
+            public int length() {
+                return root == null ? 0 : root.size;
+            }
+
+            @Override
+            public UndoableEdit insertString(int where, String str) throws BadLocationException {
+                if (where > length() || where < 0) throw new BadLocationException("Invalid insert", length());
+                int len = str.length();
+                Span span;
+                if (len > ADD_BLOCK / 4) {
+                    span = new Span(str.toCharArray(), 0, len);
+                } else {
+                    if (addUsed + len > addBlock.length) {
+                        addBlock = new char[ADD_BLOCK];
+                        addUsed = 0;
+                    }
+                    str.getChars(0, len, addBlock, addUsed);
+                    span = new Span(addBlock, addUsed, len);
+                    addUsed += len;
+                }
+                insert(where, new Span[] {span});
+                return new InsertEdit(where, span);
+            }
+
+            @Override
+            public UndoableEdit remove(int where, int nitems) throws BadLocationException {
+                if (where < 0 || nitems < 0 || where + nitems >= length())
+                    throw new BadLocationException("Invalid remove", length() + 1);
+                MarkRef[] refs = delete(where, nitems);
+                return new RemoveEdit(where, nitems, deleted, refs);
+            }
+
+            @Override
+            public String getString(int where, int len) throws BadLocationException {
+                Segment s = new Segment();
+                getChars(where, len, s);
+                return new String(s.array, s.offset, s.count);
+            }
+
+            @Override
+            public void getChars(int where, int len, Segment txt) throws BadLocationException {
+                if (where < 0 || len < 0 || where + len > length())
+                    throw new BadLocationException("Invalid location", length() + 1);
+                if (len == 0) {
+                    txt.array = new char[0];
+                    txt.offset = 0;
+                    txt.count = 0;
+                    return;
+                }
+                Piece t = root;
+                int off = where;
+                while (true) {
+                    int ls = size(t.left);
+                    if (off < ls) {
+                        t = t.left;
+                    } else if (off < ls + t.len) {
+                        off -= ls;
+                        break;
+                    } else {
+                        off -= ls + t.len;
+                        t = t.right;
+                    }
+                }
+                if (off + len <= t.len || txt.isPartialReturn()) {
+                    txt.array = t.buf;
+                    txt.offset = t.start + off;
+                    txt.count = Math.min(len, t.len - off);
+                    return;
+                }
+                char[] out = new char[len];
+                copy(root, where, where + len, out, 0);
+                txt.array = out;
+                txt.offset = 0;
+                txt.count = len;
+            }
+
+            @Override
+            public Position createPosition(int offset) throws BadLocationException {
+                purgeDeadMarks();
+                int k = Math.max(0, blockUpperBound(toIndex(offset)) - 1);
+                MarkBlock b = blocks[k];
+                if (b.offset() > offset) b.rebase(offset);
+                MarkPosition pos = new MarkPosition(b, offset - b.offset());
+                b.add(pos.mark);
+                if (b.count == MARK_BLOCK * 2) splitBlock(k);
+                return pos;
+            }
+
+            // ---- text + marks ----
+            void insert(int where, Span[] spans) {
+                int total = 0;
+                for (Span s : spans) total += s.len;
+                // positions at the very start stay there, as in GapContent
+                shiftMarks(where == 0 ? 1 : where, total);
+                split(root, where);
+                Piece l = splitLeft, r = splitRight;
+                for (Span s : spans) {
+                    if (s.len == 0) continue;
+                    Piece last = l;
+                    while (last != null && last.right != null) last = last.right;
+                    if (last != null && last.buf == s.buf && last.start + last.len == s.start) {
+                        for (Piece p = l; p != null; p = p.right) p.size += s.len;
+                        last.len += s.len;
+                    } else {
+                        l = merge(l, newPiece(s));
+                    }
+                }
+                root = merge(l, r);
+            }
+
+            MarkRef[] delete(int where, int n) {
+                deleted = slice(where, n);
+                int end = where + n;
+                List<MarkRef> refs = new ArrayList<>();
+                int k = Math.max(0, blockLowerBound(toIndex(where)) - 1);
+                for (; k < blockCount; k++) {
+                    MarkBlock b = blocks[k];
+                    int off = b.offset();
+                    if (off > end) break;
+                    for (int i = b.lowerBound(where - off); i < b.count; i++) {
+                        Mark m = b.marks[i];
+                        int actual = off + m.rel;
+                        if (actual > end) break;
+                        refs.add(new MarkRef(m, actual));
+                        m.rel = end - off;
+                    }
+                    if (off >= where && off < end) b.rebase(end);
+                }
+                shiftMarks(end, -n);
+                split(root, where);
+                Piece l = splitLeft;
+                split(splitRight, n);
+                root = merge(l, splitRight);
+                return refs.toArray(new MarkRef[0]);
+            }
+
+            /** Puts positions that were collapsed by a removal back where they were. */
+            void restoreMarks(int where, int n, MarkRef[] refs) {
+                if (refs.length == 0) return;
+                int a = Math.max(0, blockLowerBound(toIndex(where)) - 1);
+                int b = Math.max(a, blockUpperBound(toIndex(where + n)) - 1);
+                Map<Mark, Integer> restored = new IdentityHashMap<>();
+                for (MarkRef ref : refs) restored.put(ref.mark(), ref.offset());
+                int total = 0;
+                for (int k = a; k <= b; k++) total += blocks[k].count;
+                Mark[] all = new Mark[total];
+                long[] order = new long[total];
+                int j = 0;
+                for (int k = a; k <= b; k++) {
+                    MarkBlock blk = blocks[k];
+                    int off = blk.offset();
+                    for (int i = 0; i < blk.count; i++) {
+                        Mark m = blk.marks[i];
+                        long key = restored.getOrDefault(m, off + m.rel);
+                        all[j] = m;
+                        order[j] = key << 32 | j;
+                        j++;
+                    }
+                }
+                Arrays.sort(order);
+                j = 0;
+                for (int k = a; k <= b; k++) {
+                    MarkBlock blk = blocks[k];
+                    if (blk.count == 0) continue;
+                    blk.setOffset((int) (order[j] >>> 32));
+                    int off = blk.offset();
+                    for (int i = 0; i < blk.count; i++, j++) {
+                        Mark m = all[(int) order[j]];
+                        m.block = blk;
+                        m.rel = (int) (order[j] >>> 32) - off;
+                        blk.marks[i] = m;
+                    }
+                }
+            }
+
+            Span[] slice(int where, int n) {
+                List<Span> out = new ArrayList<>();
+                collect(root, where, where + n, 0, out);
+                return out.toArray(new Span[0]);
+            }
+
+            /** Moves every position at or after {@code from} by {@code delta}. */
+            private void shiftMarks(int from, int delta) {
+                moveGap(from);
+                int k = blockLowerBound(gapStart + gapLength);
+                if (k > 0) {
+                    MarkBlock b = blocks[k - 1];
+                    for (int i = b.lowerBound(from - b.offset()); i < b.count; i++) b.marks[i].rel += delta;
+                }
+                gapLength -= delta;
+                if (delta < 0) gapStart += delta;
+            }
+
+            private long toIndex(int offset) {
+                return offset < gapStart ? offset : offset + gapLength;
+            }
+
+            private void moveGap(int where) {
+                if (where < gapStart) {
+                    int lo = blockLowerBound(where), hi = blockLowerBound(gapStart);
+                    for (int i = lo; i < hi; i++) blocks[i].base += gapLength;
+                } else if (where > gapStart) {
+                    int lo = blockLowerBound(gapStart + gapLength), hi = blockLowerBound(where + gapLength);
+                    for (int i = lo; i < hi; i++) blocks[i].base -= gapLength;
+                }
+                gapStart = where;
+            }
+
+            private int blockLowerBound(long base) {
+                int lo = 0, hi = blockCount;
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (blocks[mid].base < base) lo = mid + 1;
+                    else hi = mid;
+                }
+                return lo;
+            }
+
+            private int blockUpperBound(long base) {
+                int lo = 0, hi = blockCount;
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (blocks[mid].base <= base) lo = mid + 1;
+                    else hi = mid;
+                }
+                return lo;
+            }
+
+            private void splitBlock(int k) {
+                MarkBlock b = blocks[k];
+                int half = b.count / 2;
+                MarkBlock nb = new MarkBlock(b.offset() + b.marks[half].rel);
+                int off = nb.offset();
+                for (int i = half; i < b.count; i++) {
+                    Mark m = b.marks[i];
+                    m.block = nb;
+                    m.rel = b.offset() + m.rel - off;
+                    nb.marks[nb.count++] = m;
+                    b.marks[i] = null;
+                }
+                b.count = half;
+                if (blockCount == blocks.length) blocks = Arrays.copyOf(blocks, blockCount * 2);
+                System.arraycopy(blocks, k + 1, blocks, k + 2, blockCount - k - 1);
+                blocks[k + 1] = nb;
+                blockCount++;
+            }
+
+            private void purgeDeadMarks() {
+                while (deadMarks.poll() != null) deadCount++;
+                if (deadCount <= Math.max(64, blockCount * MARK_BLOCK / 8)) return;
+                int kept = 0;
+                for (int k = 0; k < blockCount; k++) {
+                    MarkBlock b = blocks[k];
+                    int j = 0;
+                    for (int i = 0; i < b.count; i++) {
+                        if (b.marks[i].get() != null) b.marks[j++] = b.marks[i];
+                    }
+                    Arrays.fill(b.marks, j, b.count, null);
+                    b.count = j;
+                    if (j > 0 || (kept == 0 && k == blockCount - 1)) blocks[kept++] = b;
+                }
+                Arrays.fill(blocks, kept, blockCount, null);
+                blockCount = kept;
+                deadCount = 0;
+            }
+
+            // ---- treap ----
+            private Piece newPiece(Span s) {
+                seed ^= seed << 13;
+                seed ^= seed >>> 17;
+                seed ^= seed << 5;
+                return new Piece(s.buf, s.start, s.len, seed);
+            }
+
+            private static int size(Piece p) {
+                return p == null ? 0 : p.size;
+            }
+
+            private static void update(Piece p) {
+                p.size = size(p.left) + p.len + size(p.right);
+            }
+
+            /** Splits {@code t} after {@code k} chars into splitLeft / splitRight. */
+            private void split(Piece t, int k) {
+                splitMid = null;
+                cut(t, k);
+                // a piece cut in two leaves its tail with a fresh priority, which may outrank
+                // anything on the path down to it, so it only joins at the root of the right part
+                if (splitMid != null) splitRight = merge(splitMid, splitRight);
+            }
+
+            /** Does the work of split(), leaving the tail of a piece cut at k in splitMid. */
+            private void cut(Piece t, int k) {
+                if (t == null) {
+                    splitLeft = splitRight = null;
+                    return;
+                }
+                int ls = size(t.left);
+                if (k <= ls) {
+                    cut(t.left, k);
+                    assert splitRight == null || splitRight.prio <= t.prio : "treap heap order";
+                    t.left = splitRight;
+                    update(t);
+                    splitRight = t;
+                } else if (k >= ls + t.len) {
+                    cut(t.right, k - ls - t.len);
+                    assert splitLeft == null || splitLeft.prio <= t.prio : "treap heap order";
+                    t.right = splitLeft;
+                    update(t);
+                    splitLeft = t;
+                } else {
+                    int local = k - ls;
+                    // the tail gets its own priority: reusing t's would turn repeated splits
+                    // of one piece into a chain of equal priorities, i.e. a linked list
+                    splitMid = newPiece(new Span(t.buf, t.start + local, t.len - local));
+                    splitRight = t.right;
+                    t.right = null;
+                    t.len = local;
+                    update(t);
+                    splitLeft = t;
+                }
+            }
+
+            private Piece merge(Piece a, Piece b) {
+                if (a == null) return b;
+                if (b == null) return a;
+                if (a.prio >= b.prio) {
+                    a.right = merge(a.right, b);
+                    update(a);
+                    return a;
+                }
+                b.left = merge(a, b.left);
+                update(b);
+                return b;
+            }
+
+            private void copy(Piece t, int from, int to, char[] dst, int base) {
+                if (t == null || from >= base + t.size || to <= base) return;
+                copy(t.left, from, to, dst, base);
+                int ps = base + size(t.left), pe = ps + t.len;
+                int s = Math.max(from, ps), e = Math.min(to, pe);
+                if (s < e) System.arraycopy(t.buf, t.start + s - ps, dst, s - from, e - s);
+                copy(t.right, from, to, dst, pe);
+            }
+
+            private void collect(Piece t, int from, int to, int base, List<Span> out) {
+                if (t == null || from >= base + t.size || to <= base) return;
+                collect(t.left, from, to, base, out);
+                int ps = base + size(t.left), pe = ps + t.len;
+                int s = Math.max(from, ps), e = Math.min(to, pe);
+                if (s < e) out.add(new Span(t.buf, t.start + s - ps, e - s));
+                collect(t.right, from, to, pe, out);
+            }
+
+            // ---- positions ----
+            private final class MarkBlock {
+                long base;
+                Mark[] marks = new Mark[MARK_BLOCK * 2];
+                int count;
+
+                MarkBlock(int offset) {
+                    base = toIndex(offset);
+                }
+
+                int offset() {
+                    return (int) (base < gapStart ? base : base - gapLength);
+                }
+
+                void setOffset(int offset) {
+                    base = toIndex(offset);
+                }
+
+                /** Moves the block base to {@code offset}, keeping every mark where it is. */
+                void rebase(int offset) {
+                    int delta = offset - offset();
+                    for (int i = 0; i < count; i++) marks[i].rel -= delta;
+                    setOffset(offset);
+                }
+
+                int lowerBound(int rel) {
+                    int lo = 0, hi = count;
+                    while (lo < hi) {
+                        int mid = (lo + hi) >>> 1;
+                        if (marks[mid].rel < rel) lo = mid + 1;
+                        else hi = mid;
+                    }
+                    return lo;
+                }
+
+                void add(Mark m) {
+                    int lo = 0, hi = count;
+                    while (lo < hi) {
+                        int mid = (lo + hi) >>> 1;
+                        if (marks[mid].rel <= m.rel) lo = mid + 1;
+                        else hi = mid;
+                    }
+                    System.arraycopy(marks, lo, marks, lo + 1, count - lo);
+                    marks[lo] = m;
+                    count++;
+                }
+            }
+
+            private final class Mark extends WeakReference<MarkPosition> {
+                MarkBlock block;
+                int rel;
+
+                Mark(MarkPosition pos, MarkBlock block, int rel) {
+                    super(pos, deadMarks);
+                    this.block = block;
+                    this.rel = rel;
+                }
+            }
+
+            private final class MarkPosition implements Position {
+                final Mark mark;
+
+                MarkPosition(MarkBlock block, int rel) {
+                    mark = new Mark(this, block, rel);
+                }
+
+                @Override
+                public int getOffset() {
+                    return mark.block.offset() + mark.rel;
+                }
+
+                @Override
+                public String toString() {
+                    return Integer.toString(getOffset());
+                }
+            }
+
+            private record MarkRef(Mark mark, int offset) {}
+
+            // ---- undo ----
+            private final class InsertEdit extends AbstractUndoableEdit {
+                private final int offset;
+                private final Span span;
+                private MarkRef[] refs;
+
+                InsertEdit(int offset, Span span) {
+                    this.offset = offset;
+                    this.span = span;
+                }
+
+                @Override
+                public void undo() throws CannotUndoException {
+                    super.undo();
+                    refs = delete(offset, span.len);
+                }
+
+                @Override
+                public void redo() throws CannotRedoException {
+                    super.redo();
+                    insert(offset, new Span[] {span});
+                    restoreMarks(offset, span.len, refs);
+                    refs = null;
+                }
+            }
+
+            private final class RemoveEdit extends AbstractUndoableEdit {
+                private final int offset;
+                private final int length;
+                private final Span[] removed;
+                private MarkRef[] refs;
+
+                RemoveEdit(int offset, int length, Span[] removed, MarkRef[] refs) {
+                    this.offset = offset;
+                    this.length = length;
+                    this.removed = removed;
+                    this.refs = refs;
+                }
+
+                @Override
+                public void undo() throws CannotUndoException {
+                    super.undo();
+                    insert(offset, removed);
+                    restoreMarks(offset, length, refs);
+                    refs = null;
+                }
+
+                @Override
+                public void redo() throws CannotRedoException {
+                    super.redo();
+                    refs = delete(offset, length);
+                }
+            }
+        }
+    }
+
+    // -------------------- Large file mode --------------------
+    /**
+     * Read-only model over a memory-mapped file. A background scan records the byte offset
+     * of every PAGE_LINES-th line, and only the pages that are painted get decoded.
+     */
+    private static class MappedTextModel {
+        static final int PAGE_LINES = 256;
+        private static final int MAP_SHIFT = 30;
+        private static final int MAX_LINE_BYTES = 16 * 1024;
+        private static final int CACHED_PAGES = 64;
+
+        private final FileChannel channel;
+        private final long size;
+        private final Charset charset = Charset.defaultCharset();
+        private final MappedByteBuffer[] maps;
+
+        private volatile long[] pageStarts = new long[1024];
+        private volatile int indexedPages = 1;
+        private volatile long indexedBytes;
+        private volatile long indexedLines;
+        private volatile boolean indexComplete;
+        private int maxLineChars;
+
+        private final Map<Integer, String[]> pageCache = new LinkedHashMap<>(CACHED_PAGES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, String[]> eldest) {
+                return size() > CACHED_PAGES;
+            }
+        };
+
+        MappedTextModel(File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            size = channel.size();
+            maps = new MappedByteBuffer[(int) ((size >>> MAP_SHIFT) + 1)];
+        }
+
+        /** Scans the whole file for line breaks, reporting scanned bytes every few MB; runs off the EDT. */
+        void buildIndex(BooleanSupplier cancelled, LongConsumer progress) throws IOException {
+            byte[] buf = new byte[1 << 16];
+            long[] starts = pageStarts;
+            int pages = 1;
+            long lines = 0;
+            long pos = 0;
+            while (pos < size) {
+                if (cancelled.getAsBoolean()) return;
+                int n = (int) Math.min(buf.length, size - pos);
+                read(pos, buf, 0, n);
+                for (int i = 0; i < n; i++) {
+                    if (buf[i] != '\n') continue;
+                    lines++;
+                    if (lines % PAGE_LINES == 0) {
+                        if (pages == starts.length) {
+                            starts = Arrays.copyOf(starts, pages * 2);
+                            pageStarts = starts;
+                        }
+                        starts[pages++] = pos + i + 1;
+                        indexedPages = pages;
+                    }
+                }
+                pos += n;
+                indexedLines = lines;
+                indexedBytes = pos;
+                if (pos == n || (pos & ((32 << 20) - 1)) == 0) progress.accept(pos);
+            }
+            indexComplete = true;
+        }
+
+        /** Exact line count once indexed, otherwise an estimate from the part scanned so far. */
+        long lineCount() {
+            long lines = indexedLines;
+            if (indexComplete) return lines + 1;
+            long scanned = indexedBytes;
+            long avg = lines == 0 ? 80 : Math.max(1, scanned / lines);
+            return lines + 1 + (size - scanned) / avg;
+        }
+
+        double indexProgress() {
+            return size == 0 ? 1 : (double) indexedBytes / size;
+        }
+
+        boolean isIndexComplete() {
+            return indexComplete;
+        }
+
+        int maxLineChars() {
+            return maxLineChars;
+        }
+
+        /** Returns the line, or null while its page has not been indexed yet. */
+        String line(long line) throws IOException {
+            int page = (int) (line / PAGE_LINES);
+            String[] lines = pageCache.get(page);
+            if (lines == null) {
+                lines = decodePage(page);
+                if (lines == null) return null;
+                pageCache.put(page, lines);
+            }
+            int i = (int) (line % PAGE_LINES);
+            return i < lines.length ? lines[i] : null;
+        }
+
+        private String[] decodePage(int page) throws IOException {
+            int pages = indexedPages;
+            long[] starts = pageStarts;
+            if (page >= pages) return null;
+            long start = starts[page];
+            long end;
+            if (page + 1 < pages) end = starts[page + 1];
+            else if (indexComplete) end = size;
+            else return null;
+            List<String> out = new ArrayList<>(PAGE_LINES);
+            byte[] buf = new byte[(int) Math.min(1 << 16, Math.max(1, end - start))];
+            byte[] lineBuf = new byte[MAX_LINE_BYTES];
+            int lineLen = 0;
+            boolean truncated = false;
+            for (long pos = start; pos < end; ) {
+                int n = (int) Math.min(buf.length, end - pos);
+                read(pos, buf, 0, n);
+                for (int i = 0; i < n; i++) {
+                    byte b = buf[i];
+                    if (b == '\n') {
+                        out.add(decodeLine(lineBuf, lineLen, truncated));
+                        lineLen = 0;
+                        truncated = false;
+                    } else if (lineLen < lineBuf.length) {
+                        lineBuf[lineLen++] = b;
+                    } else {
+                        truncated = true;
+                    }
+                }
+                pos += n;
+            }
+            if (end == size) out.add(decodeLine(lineBuf, lineLen, truncated));
+            return out.toArray(new String[0]);
+        }
+
+        private String decodeLine(byte[] buf, int len, boolean truncated) {
+            if (len > 0 && buf[len - 1] == '\r') len--;
+            String s = new String(buf, 0, len, charset);
+            if (truncated) s += " \u2026";
+            maxLineChars = Math.max(maxLineChars, s.length());
+            return s;
+        }
+
+        private void read(long pos, byte[] dst, int off, int len) throws IOException {
+            while (len > 0) {
+                int chunk = (int) (pos >>> MAP_SHIFT);
+                int local = (int) (pos & ((1L << MAP_SHIFT) - 1));
+                MappedByteBuffer map = map(chunk);
+                int n = Math.min(len, map.limit() - local);
+                map.get(local, dst, off, n);
+                pos += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private synchronized MappedByteBuffer map(int chunk) throws IOException {
+            MappedByteBuffer m = maps[chunk];
+            if (m == null) {
+                long start = (long) chunk << MAP_SHIFT;
+                m = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(1L << MAP_SHIFT, size - start));
+                maps[chunk] = m;
+            }
+            return m;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /** Paints the visible lines of a MappedTextModel; the rest of the file is never decoded. */
+    private class LargeFileView extends JComponent implements Scrollable {
+        private static final int MAX_VIEW_HEIGHT = 1 << 30;
+        private final MappedTextModel model;
+        private final SwingWorker<Void, Long> indexer;
+        private int knownWidthChars;
+
+        LargeFileView(MappedTextModel model) {
+            this.model = model;
+            setFont(new Font("Consolas", Font.PLAIN, 14));
+            setOpaque(true);
+            indexer = new SwingWorker<>() {
+                @Override
+                protected Void doInBackground() throws Exception {
+                    model.buildIndex(this::isCancelled, this::publish);
+                    return null;
+                }
+
+                @Override
+                protected void process(List<Long> scanned) {
+                    revalidate();
+                    repaint();
+                }
+
+                @Override
+                protected void done() {
+                    revalidate();
+                    repaint();
+                }
+            };
+            indexer.execute();
+        }
+
+        void dispose() {
+            indexer.cancel(true);
+            model.close();
+        }
+
+        long lineCount() {
+            return model.lineCount();
+        }
+
+        void scrollToLine(long line) {
+            scrollRectToVisible(new Rectangle(0, lineToY(line), 1, lineHeight()));
+        }
+
+        private int lineHeight() {
+            return getFontMetrics(getFont()).getHeight();
+        }
+
+        private long viewHeight() {
+            return model.lineCount() * lineHeight();
+        }
+
+        private long yToLine(int y) {
+            long h = viewHeight();
+            if (h <= MAX_VIEW_HEIGHT) return y / lineHeight();
+            return (long) ((double) y / MAX_VIEW_HEIGHT * model.lineCount());
+        }
+
+        private int lineToY(long line) {
+            long h = viewHeight();
+            if (h <= MAX_VIEW_HEIGHT) return (int) (line * lineHeight());
+            return (int) ((double) line / model.lineCount() * MAX_VIEW_HEIGHT);
+        }
+
+        @Override
+        public Dimension getPreferredSize() {
+            FontMetrics fm = getFontMetrics(getFont());
+            knownWidthChars = model.maxLineChars();
+            int w = 20 + fm.charWidth('m') * knownWidthChars;
+            return new Dimension(w, (int) Math.min(MAX_VIEW_HEIGHT, viewHeight()) + 16);
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            Rectangle clip = g.getClipBounds();
+            g.setColor(getBg());
+            g.fillRect(clip.x, clip.y, clip.width, clip.height);
+            ((Graphics2D) g).setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setFont(getFont());
+            FontMetrics fm = g.getFontMetrics();
+            int lh = fm.getHeight();
+            long first = yToLine(clip.y);
+            long total = model.lineCount();
+            int y = lineToY(first);
+            try {
+                for (long line = first; line < total && y < clip.y + clip.height; line++, y += lh) {
+                    String text = model.line(line);
+                    if (text == null) {
+                        g.setColor(palette().dimFg);
+                        g.drawString(String.format("Indexing\u2026 %d%%", (int) (model.indexProgress() * 100)), 10, y + fm.getAscent());
+                        break;
+                    }
+                    g.setColor(getFg());
+                    g.drawString(text, 10, y + fm.getAscent());
+                }
+            } catch (IOException ex) {
+                g.setColor(Color.RED);
+                g.drawString("Read error: " + ex.getMessage(), 10, y + fm.getAscent());
+            }
+            if (model.maxLineChars() > knownWidthChars) SwingUtilities.invokeLater(this::revalidate);
+        }
+
+        @Override public Dimension getPreferredScrollableViewportSize() { return getPreferredSize(); }
+        @Override public int getScrollableUnitIncrement(Rectangle r, int orientation, int direction) {
+            return orientation == SwingConstants.VERTICAL ? lineHeight() : getFontMetrics(getFont()).charWidth('m');
+        }
+        @Override public int getScrollableBlockIncrement(Rectangle r, int orientation, int direction) {
+            return orientation == SwingConstants.VERTICAL ? Math.max(lineHeight(), r.height - lineHeight()) : r.width;
+        }
+        @Override public boolean getScrollableTracksViewportWidth() {
+            return getParent() instanceof JViewport vp && vp.getWidth() > getPreferredSize().width;
+        }
+        @Override public boolean getScrollableTracksViewportHeight() {
+            return getParent() instanceof JViewport vp && vp.getHeight() > getPreferredSize().height;
+        }
+    }
+
+    // -------------------- Document loader --------------------
+    /**
+     * Streams a file into a tab's document in the background. The reader decodes fixed-size
+     * chunks into a small bounded queue and the EDT appends them in short time slices, so
+     * the window stays responsive and the tab shows progress while the file is coming in.
+     * The area is read-only until loading finishes; closing the tab cancels it.
+     */
+    private class DocumentLoader extends SwingWorker<Void, Void> {
+        private static final int CHUNK_CHARS = 64 * 1024;
+        private static final long SLICE_NANOS = 8_000_000L;
+
+        private final File file;
+        private final File snapshot;
+        private final PieceTableDocument doc;
+        private final JTextArea area;
+        private final Component tab;
+        private final BlockingQueue<char[]> queue = new ArrayBlockingQueue<>(64);
+        private final AtomicBoolean drainScheduled = new AtomicBoolean();
+        private final PieceTableDocument.LineEndFilter lineEnds = new PieceTableDocument.LineEndFilter();
+        private volatile long bytesRead;
+        private boolean finished;
+        private Runnable onLoaded;
+
+        /** Loads {@code file}, or the compressed {@code snapshot} of it a hibernated tab left if not null. */
+        DocumentLoader(File file, File snapshot, PieceTableDocument doc, JTextArea area, Component tab) {
+            this.file = file;
+            this.snapshot = snapshot;
+            this.doc = doc;
+            this.area = area;
+            this.tab = tab;
+            area.setEditable(false);
+            // keep the caret at the top while text is appended behind it
+            if (area.getCaret() instanceof DefaultCaret dc) dc.setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
+            TabHeader header = headerOf(tab);
+            if (header != null) {
+                header.setProgress(0f);
+                header.setToolTipText("Loading " + file.getName() + " - close the tab to cancel");
+            }
+        }
+
+        /** Runs {@code action} on the EDT once the text is in and the area is editable. */
+        void onLoaded(Runnable action) {
+            Runnable previous = onLoaded;
+            onLoaded = previous == null ? action : () -> {
+                previous.run();
+                action.run();
+            };
+        }
+
+        @Override
+        protected Void doInBackground() throws Exception {
+            InputStream counting = new FilterInputStream(new FileInputStream(snapshot != null ? snapshot : file)) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) bytesRead += n;
+                    return n;
+                }
+            };
+            try (Reader r = snapshot != null
+                    ? new InputStreamReader(new GZIPInputStream(counting, 64 * 1024), StandardCharsets.UTF_8)
+                    : new InputStreamReader(counting, Charset.defaultCharset())) {
+                while (!isCancelled()) {
+                    char[] chunk = new char[CHUNK_CHARS];
+                    int n = PieceTableDocument.fill(r, chunk);
+                    if (n <= 0) break;
+                    int out = lineEnds.filter(chunk, n);
+                    if (out < chunk.length) chunk = Arrays.copyOf(chunk, out);
+                    queue.put(chunk);
+                    scheduleDrain();
+                    if (n < CHUNK_CHARS) break;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        protected void done() {
+            scheduleDrain();
+        }
+
+        private void scheduleDrain() {
+            if (drainScheduled.compareAndSet(false, true)) SwingUtilities.invokeLater(this::drain);
+        }
+
+        private void drain() {
+            drainScheduled.set(false);
+            if (finished) return;
+            if (isCancelled()) {
+                queue.clear();
+                finish();
+                return;
+            }
+            long deadline = System.nanoTime() + SLICE_NANOS;
+            char[] chunk;
+            while (System.nanoTime() < deadline && (chunk = queue.poll()) != null) {
+                doc.appendOriginal(chunk, 0, chunk.length);
+            }
+            TabHeader header = headerOf(tab);
+            long size = (snapshot != null ? snapshot : file).length();
+            if (header != null && size > 0) header.setProgress((float) bytesRead / size);
+            if (!queue.isEmpty()) scheduleDrain();
+            else if (isDone()) finish();
+        }
+
+        private void finish() {
+            finished = true;
+            EditorSession session = sessions.get(tab);
+            if (session != null && session.loader == this) session.loader = null;
+            TabHeader header = headerOf(tab);
+            if (header != null) {
+                header.setProgress(-1f);
+                header.setToolTipText(null);
+            }
+            if (isCancelled()) return;
+            try {
+                get();
+            } catch (InterruptedException | ExecutionException ex) {
+                Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                JOptionPane.showMessageDialog(AdvancedNotepad.this, "Error opening: " + cause.getMessage());
+                // a half-read file must not be saved over the original
+                closeTab(tab);
+                return;
+            }
+            doc.putProperty(DefaultEditorKit.EndOfLineStringProperty, lineEnds.separator());
+            if (area.getCaret() instanceof DefaultCaret dc) dc.setUpdatePolicy(DefaultCaret.UPDATE_WHEN_ON_EDT);
+            area.setCaretPosition(0);
+            area.setEditable(true);
+            if (onLoaded != null) onLoaded.run();
+        }
+    }
+
+    // -------------------- Save pipeline --------------------
+    /**
+     * Writes a tab to disk without blocking the EDT. The document is snapshotted as piece
+     * table spans (no text is copied), then encoded on a worker thread into a temp file next
+     * to the target, forced to disk and moved over the original, so an interrupted save never
+     * leaves a truncated file behind.
+     */
+    private class SaveJob extends SwingWorker<Long, Void> {
+        private static final int CHAR_BUFFER = 64 * 1024;
+        private static final int BYTE_BUFFER = 256 * 1024;
+
+        private final Component tab;
+        private final PieceTableDocument doc;
+        private final File file;
+        private final PieceTableDocument.Span[] spans;
+        private final long generation;
+        private final String lineSeparator;
+        private final long started = System.nanoTime();
+        private boolean finished;
+        boolean saveAgain;
+
+        SaveJob(Component tab, PieceTableDocument doc, File file) {
+            this.tab = tab;
+            this.doc = doc;
+            this.file = file;
+            this.spans = doc.snapshot();
+            this.generation = doc.generation();
+            Object eol = doc.getProperty(DefaultEditorKit.EndOfLineStringProperty);
+            this.lineSeparator = eol instanceof String str ? str : System.lineSeparator();
+            addPropertyChangeListener(e -> {
+                if (!"progress".equals(e.getPropertyName())) return;
+                TabHeader header = headerOf(tab);
+                if (header != null && !finished) header.setProgress((Integer) e.getNewValue() / 100f);
+            });
+        }
+
+        @Override
+        protected Long doInBackground() throws IOException {
+            Path target = file.toPath().toAbsolutePath();
+            boolean exists = Files.exists(target);
+            // write through symlinks instead of replacing them
+            if (exists) target = target.toRealPath();
+            Path tmp;
+            if (exists) {
+                tmp = Files.createTempFile(target.getParent(), "." + target.getFileName(), ".tmp");
+            } else {
+                // createTempFile makes the file owner-only; a new file gets the umask's permissions, as a plain create would
+                tmp = target.resolveSibling("." + target.getFileName() + "." + Long.toHexString(System.nanoTime()) + ".tmp");
+                Files.newByteChannel(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE).close();
+            }
+            try {
+                if (exists) {
+                    try {
+                        Files.setPosixFilePermissions(tmp, Files.getPosixFilePermissions(target));
+                    } catch (UnsupportedOperationException | IOException ignored) {
+                    }
+                }
+                long bytes;
+                try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    bytes = write(ch);
+                    ch.force(true);
+                }
+                try {
+                    Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException ex) {
+                    Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+                tmp = null;
+                return bytes;
+            } finally {
+                if (tmp != null) Files.deleteIfExists(tmp);
+            }
+        }
+
+        private long write(FileChannel ch) throws IOException {
+            CharsetEncoder enc = Charset.defaultCharset().newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            CharBuffer pending = CharBuffer.allocate(CHAR_BUFFER);
+            ByteBuffer out = ByteBuffer.allocateDirect(BYTE_BUFFER);
+            char[] eol = lineSeparator.toCharArray();
+            boolean translate = !"\n".equals(lineSeparator);
+            long total = 0, written = 0, done = 0;
+            for (PieceTableDocument.Span s : spans) total += s.len;
+
+            for (PieceTableDocument.Span s : spans) {
+                int i = s.start, end = s.start + s.len;
+                while (i < end) {
+                    if (pending.remaining() < eol.length) {
+                        written += encode(enc, pending, out, ch, false);
+                        setProgress((int) (100 * (done + i - s.start) / Math.max(1, total)));
+                    }
+                    if (!translate) {
+                        int n = Math.min(end - i, pending.remaining());
+                        pending.put(s.buf, i, n);
+                        i += n;
+                    } else {
+                        char c = s.buf[i++];
+                        if (c == '\n') pending.put(eol);
+                        else pending.put(c);
+                    }
+                }
+                done += s.len;
+            }
+            written += encode(enc, pending, out, ch, true);
+            while (enc.flush(out).isOverflow()) written += drain(out, ch);
+            return written + drain(out, ch);
+        }
+
+        /** Encodes what is pending, keeping a split surrogate pair for the next round. */
+        private long encode(CharsetEncoder enc, CharBuffer pending, ByteBuffer out, FileChannel ch, boolean endOfInput) throws IOException {
+            long written = 0;
+            pending.flip();
+            while (enc.encode(pending, out, endOfInput).isOverflow()) written += drain(out, ch);
+            pending.compact();
+            return written;
+        }
+
+        private long drain(ByteBuffer out, FileChannel ch) throws IOException {
+            out.flip();
+            long n = 0;
+            while (out.hasRemaining()) n += ch.write(out);
+            out.clear();
+            return n;
+        }
+
+        @Override
+        protected void done() {
+            finish();
+        }
+
+        /** Blocks until the file is written, then runs the completion step right away. */
+        void complete() {
+            try {
+                get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ignored) {
+                // reported by finish()
+            }
+            finish();
+        }
+
+        private void finish() {
+            if (finished) return;
+            finished = true;
+            EditorSession session = sessions.get(tab);
+            if (session != null && session.save == this) session.save = null;
+            TabHeader header = headerOf(tab);
+            if (header != null) header.setProgress(-1f);
+            long bytes;
+            try {
+                bytes = get();
+            } catch (InterruptedException | ExecutionException ex) {
+                Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                JOptionPane.showMessageDialog(AdvancedNotepad.this, "Error saving: " + cause.getMessage());
+                return;
+            }
+            addToRecent(file.getAbsolutePath());
+            int idx = tabs.indexOfComponent(tab);
+            if (idx < 0 || session == null) return;
+            boolean current = doc.generation() == generation;
+            session.modified = !current;
+            // the save renamed a new file into place, so the file key changed (or, after Save As, only now exists)
+            if (session.file != null) sessions.setFile(session, session.file);
+            EditJournal journal = session.journal;
+            if (journal != null) {
+                // the saved file becomes the new base; edits made during the save need a snapshot
+                if (current) journal.rebase(file);
+                else journal.compact(file, doc.snapshot());
+            }
+            String title = current ? file.getName() : file.getName() + "*";
+            tabs.setTitleAt(idx, title);
+            long millis = Math.max(1, (System.nanoTime() - started) / 1_000_000);
+            if (header != null) {
+                header.setTitle(title);
+                header.setToolTipText(String.format("Saved %,d bytes in %,d ms (%.1f MB/s)",
+                        bytes, millis, bytes / 1048.576 / millis));
+            }
+            if (saveAgain && !current && session.file != null) {
+                SaveJob next = new SaveJob(tab, doc, session.file);
+                session.save = next;
+                next.execute();
+            }
+        }
+    }
+
+    // -------------------- Edit journal --------------------
+    /**
+     * Append-only log of one tab's changes, used for crash recovery. The base is either the
+     * file the tab was loaded from (identified by size and modification time), an empty
+     * document, or a full snapshot written by compaction; each change after it is a small
+     * insert or remove record. Records are written on a shared background thread and the
+     * journal file only appears once the tab is actually edited.
+     */
+    private static class EditJournal {
+        static final String PREFIX = "journal_";
+        private static final int MAGIC = 0x414E4A31; // "ANJ1"
+        private static final byte BASE_EMPTY = 0, BASE_FILE = 1;
+        private static final byte INSERT = 'I', REMOVE = 'R', SNAPSHOT = 'S';
+        private static final long COMPACT_MIN_BYTES = 4L * 1024 * 1024;
+        private static final AtomicLong SEQ = new AtomicLong();
+
+        private final File journalFile;
+        private final Executor io;
+        private long loggedBytes; // EDT side, drives compaction
+
+        // writer thread state
+        private File original;
+        private byte baseKind = BASE_EMPTY;
+        private long baseSize, baseModified;
+        private FileOutputStream fileOut;
+        private DataOutputStream out;
+        private boolean dirty, broken;
+
+        EditJournal(File dir, Executor io) {
+            this.journalFile = new File(dir, PREFIX + System.currentTimeMillis() + "_" + SEQ.incrementAndGet() + ".anj");
+            this.io = io;
+        }
+
+        /** Starts over from the file's current contents, dropping the log. */
+        void rebase(File file) {
+            reset(file, file != null && file.exists());
+        }
+
+        /** Starts over from an empty document that will be saved to {@code original}. */
+        void start(File original) {
+            reset(original, false);
+        }
+
+        private void reset(File file, boolean fromFile) {
+            long size = fromFile ? file.length() : 0, modified = fromFile ? file.lastModified() : 0;
+            loggedBytes = 0;
+            io.execute(() -> {
+                close();
+                journalFile.delete();
+                broken = false;
+                original = file;
+                baseKind = fromFile ? BASE_FILE : BASE_EMPTY;
+                baseSize = size;
+                baseModified = modified;
+            });
+        }
+
+        void inserted(int offset, PieceTableDocument.Span[] spans) {
+            int len = 0;
+            for (PieceTableDocument.Span s : spans) len += s.len;
+            loggedBytes += 9 + 2L * len;
+            int total = len;
+            io.execute(() -> {
+                DataOutputStream o = open();
+                if (o == null) return;
+                try {
+                    o.writeByte(INSERT);
+                    o.writeInt(offset);
+                    o.writeInt(total);
+                    for (PieceTableDocument.Span s : spans) writeChars(o, s);
+                    dirty = true;
+                } catch (IOException ex) {
+                    fail();
+                }
+            });
+        }
+
+        void removed(int offset, int length) {
+            loggedBytes += 9;
+            io.execute(() -> {
+                DataOutputStream o = open();
+                if (o == null) return;
+                try {
+                    o.writeByte(REMOVE);
+                    o.writeInt(offset);
+                    o.writeInt(length);
+                    dirty = true;
+                } catch (IOException ex) {
+                    fail();
+                }
+            });
+        }
+
+        /** Pushes buffered records to the disk; called every few seconds. */
+        void flush() {
+            io.execute(() -> {
+                if (out == null || !dirty) return;
+                try {
+                    out.flush();
+                    fileOut.getChannel().force(false);
+                    dirty = false;
+                } catch (IOException ex) {
+                    fail();
+                }
+            });
+        }
+
+        boolean needsCompaction(int documentLength) {
+            return loggedBytes > COMPACT_MIN_BYTES && loggedBytes > 4L * documentLength;
+        }
+
+        /** Replaces the log with a single snapshot of the current text. */
+        void compact(File file, PieceTableDocument.Span[] snapshot) {
+            long len = 0;
+            for (PieceTableDocument.Span s : snapshot) len += s.len;
+            loggedBytes = 9 + 2 * len;
+            long total = len;
+            io.execute(() -> {
+                close();
+                original = file;
+                baseKind = BASE_EMPTY;
+                broken = false;
+                File tmp = new File(journalFile.getPath() + ".tmp");
+                try (FileOutputStream out = new FileOutputStream(tmp);
+                     DataOutputStream o = new DataOutputStream(new BufferedOutputStream(out, 1 << 16))) {
+                    writeHeader(o);
+                    o.writeByte(SNAPSHOT);
+                    o.writeLong(total);
+                    for (PieceTableDocument.Span s : snapshot) writeChars(o, s);
+                    o.flush();
+                    // on disk before the rename, or a crash could leave an empty journal in place of the old one
+                    out.getChannel().force(true);
+                } catch (IOException ex) {
+                    tmp.delete();
+                    fail();
+                    return;
+                }
+                try {
+                    Files.move(tmp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException ex) {
+                    tmp.delete();
+                    fail();
+                }
+            });
+        }
+
+        /** Drops the journal once its changes are saved or deliberately thrown away. */
+        void discard() {
+            io.execute(() -> {
+                close();
+                broken = true;
+                journalFile.delete();
+            });
+        }
+
+        private DataOutputStream open() {
+            if (out != null || broken) return out;
+            try {
+                boolean fresh = !journalFile.exists();
+                fileOut = new FileOutputStream(journalFile, true);
+                out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+                if (fresh) writeHeader(out);
+            } catch (IOException ex) {
+                fail();
+            }
+            return out;
+        }
+
+        private void writeHeader(DataOutputStream o) throws IOException {
+            o.writeInt(MAGIC);
+            o.writeUTF(original == null ? "" : original.getAbsolutePath());
+            o.writeByte(baseKind);
+            o.writeLong(baseSize);
+            o.writeLong(baseModified);
+        }
+
+        private static void writeChars(DataOutputStream o, PieceTableDocument.Span s) throws IOException {
+            byte[] bytes = new byte[Math.min(s.len, 8192) * 2];
+            for (int i = 0; i < s.len; ) {
+                int n = Math.min(s.len - i, bytes.length / 2);
+                for (int j = 0; j < n; j++) {
+                    char c = s.buf[s.start + i + j];
+                    bytes[2 * j] = (byte) (c >>> 8);
+                    bytes[2 * j + 1] = (byte) c;
+                }
+                o.write(bytes, 0, 2 * n);
+                i += n;
+            }
+        }
+
+        private void close() {
+            if (out == null) return;
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+            out = null;
+            fileOut = null;
+            dirty = false;
+        }
+
+        private void fail() {
+            // journaling is best effort; stop rather than log a corrupt sequence
+            close();
+            broken = true;
+        }
+
+        record Recovered(File original, String text) {}
+
+        /** Whether the journal with this file name was started before {@code millis}. */
+        static boolean startedBefore(String name, long millis) {
+            int end = name.indexOf('_', PREFIX.length());
+            try {
+                return Long.parseLong(name.substring(PREFIX.length(), end)) < millis;
+            } catch (NumberFormatException | IndexOutOfBoundsException ex) {
+                return true;
+            }
+        }
+
+        /**
+         * Rebuilds the text from a journal. A record cut short by a crash ends the replay;
+         * a journal based on a file that has changed since is rejected.
+         */
+        static Recovered replay(File journal) throws IOException, BadLocationException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal), 1 << 16))) {
+                if (in.readInt() != MAGIC) throw new IOException("not an edit journal");
+                String path = in.readUTF();
+                File original = path.isEmpty() ? null : new File(path);
+                byte baseKind = in.readByte();
+                long baseSize = in.readLong(), baseModified = in.readLong();
+
+                PieceTableDocument doc = new PieceTableDocument();
+                if (baseKind == BASE_FILE) {
+                    if (original == null || original.length() != baseSize || original.lastModified() != baseModified) {
+                        throw new IOException(path + " has changed since it was edited");
+                    }
+                    try (Reader r = new BufferedReader(new FileReader(original))) {
+                        doc.read(r, baseSize);
+                    }
+                }
+                while (true) {
+                    int kind = in.read();
+                    if (kind < 0) break;
+                    try {
+                        if (kind == SNAPSHOT) {
+                            String text = readChars(in, (int) in.readLong());
+                            doc.remove(0, doc.getLength());
+                            doc.insertString(0, text, null);
+                        } else if (kind == INSERT) {
+                            int offset = in.readInt();
+                            String text = readChars(in, in.readInt());
+                            doc.insertString(offset, text, null);
+                        } else if (kind == REMOVE) {
+                            int offset = in.readInt(), length = in.readInt();
+                            doc.remove(offset, length);
+                        } else {
+                            break;
+                        }
+                    } catch (EOFException truncated) {
+                        break;
+                    }
+                }
+                return new Recovered(original, doc.getText(0, doc.getLength()));
+            }
+        }
+
+        private static String readChars(DataInputStream in, int n) throws IOException {
+            byte[] bytes = new byte[2 * n];
+            in.readFully(bytes);
+            char[] chars = new char[n];
+            for (int i = 0; i < n; i++) chars[i] = (char) ((bytes[2 * i] & 0xff) << 8 | (bytes[2 * i + 1] & 0xff));
+            return new String(chars);
+        }
+    }
+
+    // -------------------- Search engine --------------------
+    /**
+     * Read-only view of a Document as a CharSequence. Text is fetched through a partial-return
+     * Segment, so with the piece table a window is just a reference into a backing array and
+     * scanning the document copies nothing. Call {@link #reset()} after the document changes.
+     */
+    private static final class DocumentCharSequence implements CharSequence {
+        private static final int WINDOW = 16 * 1024;
+
+        private final Document doc;
+        private final Segment seg = new Segment();
+        private int length;
+        private int winStart, winEnd; // [winStart, winEnd) is available in seg
+
+        DocumentCharSequence(Document doc) {
+            this.doc = doc;
+            seg.setPartialReturn(true);
+            reset();
+        }
+
+        void reset() {
+            length = doc.getLength();
+            winStart = winEnd = 0;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < winStart || index >= winEnd) {
+                if (index < 0 || index >= length) throw new IndexOutOfBoundsException(index);
+                // when scanning backwards, fetch the window that ends at index
+                boolean backwards = index < winStart && index >= winStart - WINDOW;
+                load(backwards ? Math.max(0, index - WINDOW + 1) : index, index);
+            }
+            return seg.array[seg.offset + index - winStart];
+        }
+
+        private void load(int start, int index) {
+            try {
+                doc.getText(start, Math.min(WINDOW, length - start), seg);
+                if (index >= start + seg.count) {
+                    // a piece boundary cut the window short
+                    start = index;
+                    doc.getText(start, Math.min(WINDOW, length - start), seg);
+                }
+            } catch (BadLocationException ex) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            winStart = start;
+            winEnd = start + seg.count;
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            try {
+                return doc.getText(start, end - start);
+            } catch (BadLocationException ex) {
+                throw new IndexOutOfBoundsException(start);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length).toString();
+        }
+    }
+
+    /**
+     * A compiled Find query. A searcher remembers where its last match ended, so each thread
+     * needs its own: background scans work on a {@link #copy()}.
+     */
+    private interface Searcher {
+        /** Start of the first match that begins at or after {@code from} and ends by {@code limit}, or -1. */
+        int find(CharSequence text, int from, int limit);
+
+        /** Start of the last match that begins at or before {@code from}, or -1. */
+        int findLast(CharSequence text, int from);
+
+        /** End of the match last returned. */
+        int end();
+
+        /** Replacement text for the match last returned. */
+        String expand(String template);
+
+        /** Length shared by every match, or -1 when matches vary in length. */
+        int fixedLength();
+
+        boolean matches(String query, boolean matchCase, boolean regex);
+
+        /** An independent searcher for the same query, for use on another thread. */
+        Searcher copy();
+    }
+
+    /** Thrown out of a regex search that ran past its time budget or whose thread was interrupted. */
+    private static final class SearchTimeoutException extends RuntimeException {
+        SearchTimeoutException() {
+            super("search took too long", null, false, false);
+        }
+    }
+
+    /**
+     * Boyer-Moore-Horspool search for a literal over any CharSequence, forwards or backwards.
+     * Case-insensitive matching folds each character as it is compared (the way
+     * String.regionMatches does), so match offsets always line up with the document.
+     */
+    private static final class TextSearcher implements Searcher {
+        private static final int TABLE = 256; // shift tables are hashed on the low byte
+
+        private final String query;
+        private final boolean matchCase;
+        private final char[] pattern;
+        private final int[] forwardShift = new int[TABLE];
+        private final int[] backwardShift = new int[TABLE];
+        private int lastEnd;
+
+        TextSearcher(String query, boolean matchCase) {
+            this.query = query;
+            this.matchCase = matchCase;
+            int m = query.length();
+            pattern = new char[m];
+            for (int i = 0; i < m; i++) pattern[i] = fold(query.charAt(i));
+            Arrays.fill(forwardShift, Math.max(1, m));
+            Arrays.fill(backwardShift, Math.max(1, m));
+            // colliding characters keep the smaller shift, which is always safe
+            for (int i = 0; i < m - 1; i++) forwardShift[pattern[i] & (TABLE - 1)] = m - 1 - i;
+            for (int i = m - 1; i > 0; i--) backwardShift[pattern[i] & (TABLE - 1)] = i;
+        }
+
+        @Override
+        public boolean matches(String query, boolean matchCase, boolean regex) {
+            return !regex && this.matchCase == matchCase && this.query.equals(query);
+        }
+
+        @Override
+        public Searcher copy() {
+            return new TextSearcher(query, matchCase);
+        }
+
+        int length() {
+            return pattern.length;
+        }
+
+        @Override
+        public int fixedLength() {
+            return pattern.length;
+        }
+
+        @Override
+        public int find(CharSequence text, int from, int limit) {
+            int i = indexOf(text, from, limit);
+            lastEnd = i + pattern.length;
+            return i;
+        }
+
+        @Override
+        public int findLast(CharSequence text, int from) {
+            int i = lastIndexOf(text, from);
+            lastEnd = i + pattern.length;
+            return i;
+        }
+
+        @Override
+        public int end() {
+            return lastEnd;
+        }
+
+        @Override
+        public String expand(String template) {
+            return template;
+        }
+
+        private char fold(char c) {
+            if (matchCase) return c;
+            if (c < 128) return c >= 'A' && c <= 'Z' ? (char) (c + 32) : c;
+            return Character.toLowerCase(Character.toUpperCase(c));
+        }
+
+        /** First match starting at or after {@code from}, or -1. */
+        int indexOf(CharSequence text, int from) {
+            return indexOf(text, from, text.length());
+        }
+
+        /** First match that lies entirely within [from, limit), or -1. */
+        int indexOf(CharSequence text, int from, int limit) {
+            int m = pattern.length;
+            if (m == 0) return -1;
+            int last = m - 1;
+            for (int pos = Math.max(0, from); pos + m <= limit; ) {
+                char c = fold(text.charAt(pos + last));
+                if (c == pattern[last]) {
+                    int j = last - 1;
+                    while (j >= 0 && fold(text.charAt(pos + j)) == pattern[j]) j--;
+                    if (j < 0) return pos;
+                }
+                pos += forwardShift[c & (TABLE - 1)];
+            }
+            return -1;
+        }
+
+        /** Last match starting at or before {@code from}, or -1. */
+        int lastIndexOf(CharSequence text, int from) {
+            int m = pattern.length;
+            if (m == 0) return -1;
+            for (int pos = Math.min(from, text.length() - m); pos >= 0; ) {
+                char c = fold(text.charAt(pos));
+                if (c == pattern[0]) {
+                    int j = 1;
+                    while (j < m && fold(text.charAt(pos + j)) == pattern[j]) j++;
+                    if (j == m) return pos;
+                }
+                pos -= backwardShift[c & (TABLE - 1)];
+            }
+            return -1;
+        }
+    }
+
+    /** CharSequence over a piece-table snapshot; the spans never change, so any thread may read it. */
+    private static final class SpanCharSequence implements CharSequence {
+        private final PieceTableDocument.Span[] spans;
+        private final int[] starts;
+        private final int length;
+        private int current; // span of the last lookup
+
+        SpanCharSequence(PieceTableDocument.Span[] spans) {
+            this.spans = spans;
+            this.starts = new int[spans.length];
+            int pos = 0;
+            for (int i = 0; i < spans.length; i++) {
+                starts[i] = pos;
+                pos += spans[i].len;
+            }
+            this.length = pos;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (spans.length == 0) throw new IndexOutOfBoundsException(index);
+            int rel = index - starts[current];
+            if (rel < 0 || rel >= spans[current].len) {
+                if (index < 0 || index >= length) throw new IndexOutOfBoundsException(index);
+                int lo = 0, hi = starts.length - 1;
+                while (lo < hi) {
+                    int mid = (lo + hi + 1) >>> 1;
+                    if (starts[mid] <= index) lo = mid;
+                    else hi = mid - 1;
+                }
+                current = lo;
+                rel = index - starts[lo];
+            }
+            PieceTableDocument.Span s = spans[current];
+            return s.buf[s.start + rel];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            StringBuilder sb = new StringBuilder(end - start);
+            for (int i = start; i < end; i++) sb.append(charAt(i));
+            return sb.toString();
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length).toString();
+        }
+    }
+
+    /**
+     * java.util.regex search with a time budget. The matcher runs over the text through a
+     * wrapper that checks the clock every few thousand characters, so a pattern that
+     * backtracks catastrophically fails with {@link SearchTimeoutException} instead of
+     * hanging. Compiled patterns are shared through a small LRU cache.
+     */
+    private static final class RegexSearcher implements Searcher {
+        static final long INTERACTIVE_BUDGET_NANOS = 2_000_000_000L;
+        static final long BACKGROUND_BUDGET_NANOS = 60_000_000_000L;
+        private static final int CACHE_SIZE = 32;
+        private static final Map<String, Pattern> CACHE = new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+        private final String query;
+        private final boolean matchCase;
+        private final Pattern pattern;
+        // the query as a lookahead, or null if it cannot be wrapped: it finds where matches start
+        // without consuming them, so a region can bound the starts while matches run past its end
+        private final Pattern starts;
+        private final long budgetNanos;
+        private final DeadlineCharSequence guarded = new DeadlineCharSequence();
+        private Matcher matcher, startMatcher;
+
+        private RegexSearcher(String query, boolean matchCase, Pattern pattern, Pattern starts, long budgetNanos) {
+            this.query = query;
+            this.matchCase = matchCase;
+            this.pattern = pattern;
+            this.starts = starts;
+            this.budgetNanos = budgetNanos;
+        }
+
+        static RegexSearcher compile(String query, boolean matchCase, long budgetNanos) {
+            int flags = Pattern.MULTILINE | (matchCase ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+            Pattern p, starts;
+            synchronized (CACHE) {
+                p = CACHE.computeIfAbsent(flags + ":" + query, k -> Pattern.compile(query, flags));
+                try {
+                    // adds no capturing group, so back references keep their numbers
+                    starts = CACHE.computeIfAbsent(flags + ":(?=" + query + ")", k -> Pattern.compile("(?=" + query + ")", flags));
+                } catch (PatternSyntaxException ex) {
+                    starts = null; // e.g. an unterminated \Q swallows the closing parenthesis
+                }
+            }
+            return new RegexSearcher(query, matchCase, p, starts, budgetNanos);
+        }
+
+        @Override
+        public boolean matches(String query, boolean matchCase, boolean regex) {
+            return regex && this.matchCase == matchCase && this.query.equals(query);
+        }
+
+        @Override
+        public Searcher copy() {
+            return new RegexSearcher(query, matchCase, pattern, starts, BACKGROUND_BUDGET_NANOS);
+        }
+
+        @Override
+        public int fixedLength() {
+            return -1;
+        }
+
+        private Matcher matcherFor(CharSequence text) {
+            if (guarded.text != text || matcher == null) {
+                guarded.text = text;
+                matcher = pattern.matcher(guarded);
+                matcher.useTransparentBounds(true);
+                matcher.useAnchoringBounds(false);
+                startMatcher = null;
+            }
+            return matcher;
+        }
+
+        /** The first match start in [from, limit], or -1; the match itself may end past limit. */
+        private int findStart(CharSequence text, int from, int limit) {
+            matcherFor(text);
+            if (startMatcher == null) {
+                startMatcher = starts.matcher(guarded);
+                startMatcher.useTransparentBounds(true);
+                startMatcher.useAnchoringBounds(false);
+            }
+            startMatcher.region(from, limit);
+            return startMatcher.find() ? startMatcher.start() : -1;
+        }
+
+        @Override
+        public int find(CharSequence text, int from, int limit) {
+            guarded.arm(budgetNanos);
+            return findFrom(text, from, limit);
+        }
+
+        private int findFrom(CharSequence text, int from, int limit) {
+            if (from < 0 || from > limit) return -1;
+            Matcher m = matcherFor(text);
+            m.region(from, limit);
+            return m.find() ? m.start() : -1;
+        }
+
+        /**
+         * Scans forward from ever larger windows before {@code from}; regexes cannot run backwards.
+         * Only starts up to {@code from} are looked for, so a pass never reads the tail after it.
+         */
+        @Override
+        public int findLast(CharSequence text, int from) {
+            guarded.arm(budgetNanos);
+            int length = text.length();
+            from = Math.min(from, length);
+            for (long window = 4096; ; window *= 4) {
+                int windowStart = (int) Math.max(0, from - window);
+                int last = -1;
+                for (int pos = windowStart; pos <= from; ) {
+                    int i = starts != null ? findStart(text, pos, from) : findFrom(text, pos, length);
+                    if (i < 0 || i > from) break;
+                    last = i;
+                    if (starts != null) findFrom(text, i, length); // the match at i, for its end
+                    pos = Math.max(matcher.end(), i + 1);
+                }
+                if (last >= 0) return findFrom(text, last, length); // leave the matcher on that match
+                if (windowStart == 0) return -1;
+            }
+        }
+
+        @Override
+        public int end() {
+            return matcher.end();
+        }
+
+        /** Expands $n, ${name} and backslash escapes like Matcher.appendReplacement does. */
+        @Override
+        public String expand(String template) {
+            StringBuilder sb = new StringBuilder(template.length() + 16);
+            for (int i = 0; i < template.length(); i++) {
+                char c = template.charAt(i);
+                if (c == '\\' && i + 1 < template.length()) {
+                    sb.append(template.charAt(++i));
+                } else if (c == '$' && i + 1 < template.length() && template.charAt(i + 1) == '{') {
+                    int close = template.indexOf('}', i + 2);
+                    if (close < 0) throw new IllegalArgumentException("unclosed group name in replacement");
+                    String group = matcher.group(template.substring(i + 2, close));
+                    if (group != null) sb.append(group);
+                    i = close;
+                } else if (c == '$' && i + 1 < template.length() && Character.isDigit(template.charAt(i + 1))) {
+                    // take as many digits as still name an existing group
+                    int group = template.charAt(++i) - '0';
+                    while (i + 1 < template.length() && Character.isDigit(template.charAt(i + 1))) {
+                        int longer = group * 10 + template.charAt(i + 1) - '0';
+                        if (longer > matcher.groupCount()) break;
+                        group = longer;
+                        i++;
+                    }
+                    if (group > matcher.groupCount()) throw new IllegalArgumentException("no group " + group);
+                    String value = matcher.group(group);
+                    if (value != null) sb.append(value);
+                } else {
+                    sb.append(c);
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    /** The text a regex runs over, with a clock check every 4096 character reads. */
+    private static final class DeadlineCharSequence implements CharSequence {
+        private CharSequence text;
+        private long deadline;
+        private int reads;
+
+        void arm(long budgetNanos) {
+            deadline = System.nanoTime() + budgetNanos;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if ((++reads & 0xFFF) == 0 && (System.nanoTime() > deadline || Thread.currentThread().isInterrupted())) {
+                throw new SearchTimeoutException();
+            }
+            return text.charAt(index);
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return text.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return text.toString();
+        }
+    }
+
+    /**
+     * Replace All as in-place edits. Matches are found on a snapshot in the background, then
+     * replaced from the last to the first on the EDT in short slices, so earlier offsets stay
+     * valid and the window stays responsive. All replacements land in one history step that
+     * undoes at once; stopping early keeps what was replaced so far in that step.
+     */
+    private class ReplaceAllJob extends SwingWorker<ReplaceAllJob.Matches, Void> {
+        private static final long SLICE_NANOS = 8_000_000L;
+        private static final int MERGE_GAP = 256;      // matches this close share one edit
+        private static final int MAX_RUN = 16 * 1024;  // ...up to this much text per edit
+
+        /** Match bounds in document order; {@code replacements} is null when every match gets the template. */
+        record Matches(int[] starts, int[] ends, String[] replacements, int count) {}
+
+        private final JTextArea area;
+        private final PieceTableDocument doc;
+        private final EditHistory history;
+        private final Searcher searcher;
+        private final String replacement;
+        private final JLabel status;
+        private final Runnable onFinish;
+        private final PieceTableDocument.Span[] snapshot;
+        private long generation;
+        private Matches matches;
+        private int next;
+        private boolean grouped;
+        private final StringBuilder run = new StringBuilder();
+        private boolean stopped, finished;
+
+        ReplaceAllJob(JTextArea area, PieceTableDocument doc, EditHistory history, Searcher searcher,
+                      String replacement, JLabel status, Runnable onFinish) {
+            this.area = area;
+            this.doc = doc;
+            this.history = history;
+            this.searcher = searcher.copy();
+            this.replacement = replacement;
+            this.status = status;
+            this.onFinish = onFinish;
+            this.snapshot = doc.snapshot();
+            this.generation = doc.generation();
+            area.setEditable(false);
+            status.setText("Searching...");
+        }
+
+        @Override
+        protected Matches doInBackground() {
+            SpanCharSequence text = new SpanCharSequence(snapshot);
+            int length = text.length();
+            boolean expand = searcher.fixedLength() < 0;
+            int[] starts = new int[64], ends = new int[64];
+            String[] replacements = expand ? new String[64] : null;
+            int count = 0;
+            for (int pos = 0, i; pos <= length && (i = searcher.find(text, pos, length)) >= 0; ) {
+                if (isCancelled()) return null;
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                    ends = Arrays.copyOf(ends, count * 2);
+                    if (expand) replacements = Arrays.copyOf(replacements, count * 2);
+                }
+                int end = searcher.end();
+                starts[count] = i;
+                ends[count] = end;
+                if (expand) replacements[count] = searcher.expand(replacement);
+                count++;
+                // an empty match still has to move the scan along
+                pos = end > i ? end : i + 1;
+            }
+            return new Matches(starts, ends, replacements, count);
+        }
+
+        @Override
+        protected void done() {
+            if (stopped || isCancelled()) {
+                finish("Cancelled");
+                return;
+            }
+            try {
+                matches = get();
+            } catch (InterruptedException | ExecutionException ex) {
+                Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                finish(cause instanceof SearchTimeoutException ? "Search timed out" : "Error: " + cause.getMessage());
+                return;
+            }
+            if (matches.count() == 0) {
+                finish("Not found");
+                return;
+            }
+            // while the group is open every edit the history records joins it
+            history.beginCompound();
+            grouped = true;
+            next = matches.count() - 1;
+            applySlice();
+        }
+
+        private void applySlice() {
+            if (finished) return;
+            int total = matches.count();
+            if (stopped) {
+                finish(String.format("Stopped after %,d of %,d", total - 1 - next, total));
+                return;
+            }
+            if (doc.generation() != generation) {
+                finish("Stopped: the document changed");
+                return;
+            }
+            long deadline = System.nanoTime() + SLICE_NANOS;
+            try {
+                while (next >= 0 && System.nanoTime() < deadline) {
+                    next = replaceRun(doc, matches, next, replacement, run);
+                }
+            } catch (BadLocationException ex) {
+                finish("Error: " + ex.getMessage());
+                return;
+            }
+            generation = doc.generation();
+            if (next >= 0) {
+                status.setText(String.format("Replacing... %,d of %,d", total - 1 - next, total));
+                SwingUtilities.invokeLater(this::applySlice);
+            } else {
+                finish(String.format("Replaced %,d", total));
+            }
+        }
+
+        /**
+         * Replaces match {@code next} together with the preceding matches that sit close to it,
+         * as one remove and one insert of the whole run, and returns the next index to apply.
+         */
+        static int replaceRun(AbstractDocument doc, Matches matches, int next, String replacement, StringBuilder run)
+                throws BadLocationException {
+            int[] starts = matches.starts(), ends = matches.ends();
+            String[] replacements = matches.replacements();
+            int end = ends[next];
+            int first = next;
+            while (first > 0 && starts[first] - ends[first - 1] <= MERGE_GAP && end - starts[first - 1] <= MAX_RUN) {
+                first--;
+            }
+            if (first == next) {
+                doc.replace(starts[next], end - starts[next], replacements != null ? replacements[next] : replacement, null);
+                return next - 1;
+            }
+            run.setLength(0);
+            for (int k = first; k <= next; k++) {
+                run.append(replacements != null ? replacements[k] : replacement);
+                if (k < next) run.append(doc.getText(ends[k], starts[k + 1] - ends[k]));
+            }
+            doc.replace(starts[first], end - starts[first], run.toString(), null);
+            return first - 1;
+        }
+
+        void stop() {
+            stopped = true;
+            cancel(true);
+        }
+
+        private void finish(String message) {
+            finished = true;
+            if (grouped) history.endCompound();
+            grouped = false;
+            area.setEditable(true);
+            status.setText(message);
+            onFinish.run();
+        }
+    }
+
+    /**
+     * Highlights every occurrence of the Find text in one area and reports "n of N". The full
+     * list of match offsets is built on a snapshot in the background and restarted whenever
+     * the query changes. After an edit a literal query rescans only the characters around it
+     * and shifts the offsets behind it; a regex can match across any distance, so it rescans
+     * in the background. Highlighter tags exist only for the visible matches.
+     */
+    private class MatchHighlighter implements DocumentListener, ChangeListener, CaretListener {
+        private static final int MAX_TAGS = 4000;
+        private static final int LOCAL_RESCAN_LIMIT = 64 * 1024;
+
+        private final JTextArea area;
+        private final PieceTableDocument doc;
+        private final JLabel status;
+        private final DocumentCharSequence text;
+        private final JViewport viewport;
+        private final Highlighter.HighlightPainter painter;
+        private final List<Object> tags = new ArrayList<>();
+        private Searcher searcher;
+        private int[] starts = new int[0], ends = new int[0];
+        private int count;
+        private boolean complete; // matches cover the whole current document
+        private String failure;
+        private SwingWorker<int[][], Void> scan;
+        private boolean refreshQueued;
+
+        MatchHighlighter(JTextArea area, PieceTableDocument doc, JLabel status) {
+            this.area = area;
+            this.doc = doc;
+            this.status = status;
+            this.text = new DocumentCharSequence(doc);
+            this.viewport = (JViewport) SwingUtilities.getAncestorOfClass(JViewport.class, area);
+            this.painter = new DefaultHighlighter.DefaultHighlightPainter(themed(p -> p.match));
+            doc.addDocumentListener(this);
+            area.addCaretListener(this);
+            if (viewport != null) viewport.addChangeListener(this);
+        }
+
+        /** Starts highlighting a new query, or stops with {@code null}. */
+        void setQuery(Searcher query) {
+            searcher = query == null ? null : query.copy();
+            count = 0;
+            complete = false;
+            failure = null;
+            scheduleRefresh();
+            if (searcher != null) startScan();
+            else cancelScan();
+            updateStatus();
+        }
+
+        void dispose() {
+            setQuery(null);
+            doc.removeDocumentListener(this);
+            area.removeCaretListener(this);
+            if (viewport != null) viewport.removeChangeListener(this);
+        }
+
+        private void cancelScan() {
+            if (scan != null) scan.cancel(true);
+            scan = null;
+        }
+
+        private void startScan() {
+            cancelScan();
+            Searcher query = searcher.copy();
+            boolean overlapping = query.fixedLength() > 0;
+            PieceTableDocument.Span[] snapshot = doc.snapshot();
+            long generation = doc.generation();
+            scan = new SwingWorker<>() {
+                @Override
+                protected int[][] doInBackground() {
+                    SpanCharSequence seq = new SpanCharSequence(snapshot);
+                    int length = seq.length();
+                    int[] s = new int[64], e = new int[64];
+                    int n = 0;
+                    for (int pos = 0, i; pos <= length && (i = query.find(seq, pos, length)) >= 0; ) {
+                        if (isCancelled()) return null;
+                        int end = query.end();
+                        // empty regex matches have nothing to highlight
+                        if (end > i) {
+                            if (n == s.length) {
+                                s = Arrays.copyOf(s, n * 2);
+                                e = Arrays.copyOf(e, n * 2);
+                            }
+                            s[n] = i;
+                            e[n++] = end;
+                        }
+                        pos = overlapping || end == i ? i + 1 : end;
+                    }
+                    return new int[][] {s, e, {n}};
+                }
+
+                @Override
+                protected void done() {
+                    if (scan != this || isCancelled()) return;
+                    if (doc.generation() != generation) {
+                        // edited while scanning; the result is already stale
+                        startScan();
+                        return;
+                    }
+                    scan = null;
+                    try {
+                        int[][] result = get();
+                        starts = result[0];
+                        ends = result[1];
+                        count = result[2][0];
+                        complete = true;
+                    } catch (InterruptedException | ExecutionException ex) {
+                        failure = ex.getCause() instanceof SearchTimeoutException ? "Search timed out" : "Search failed";
+                    }
+                    scheduleRefresh();
+                    updateStatus();
+                }
+            };
+            scan.execute();
+        }
+
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            if (!complete) return;
+            int offset = e.getOffset(), length = e.getLength(), m = searcher.fixedLength();
+            if (m < 0 || length > LOCAL_RESCAN_LIMIT) {
+                rescan();
+                return;
+            }
+            // matches spanning the insertion point are gone; new ones can start just before it
+            splice(offset - m + 1, offset, length, offset - m + 1, offset + length);
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            if (!complete) return;
+            int offset = e.getOffset(), length = e.getLength(), m = searcher.fixedLength();
+            if (m < 0) {
+                rescan();
+                return;
+            }
+            splice(offset - m + 1, offset + length, -length, offset - m + 1, offset);
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+        }
+
+        private void rescan() {
+            complete = false;
+            count = 0;
+            scheduleRefresh();
+            startScan();
+        }
+
+        /**
+         * Drops the matches starting in [dropFrom, dropTo), moves the ones after by
+         * {@code delta} and adds whatever now starts in [scanFrom, scanTo). Literal queries only.
+         */
+        private void splice(int dropFrom, int dropTo, int delta, int scanFrom, int scanTo) {
+            int a = lowerBound(dropFrom), b = lowerBound(dropTo);
+            text.reset();
+            int m = searcher.fixedLength();
+            int limit = Math.min(text.length(), scanTo + m - 1);
+            int[] found = new int[4];
+            int n = 0;
+            for (int i = searcher.find(text, Math.max(0, scanFrom), limit); i >= 0; i = searcher.find(text, i + 1, limit)) {
+                if (n == found.length) found = Arrays.copyOf(found, n * 2);
+                found[n++] = i;
+            }
+            int tail = count - b;
+            int newCount = a + n + tail;
+            if (newCount > starts.length) {
+                int capacity = Math.max(newCount, starts.length * 3 / 2);
+                starts = Arrays.copyOf(starts, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+            }
+            System.arraycopy(starts, b, starts, a + n, tail);
+            for (int i = a + n; i < newCount; i++) {
+                starts[i] += delta;
+                ends[i] = starts[i] + m;
+            }
+            for (int i = 0; i < n; i++) {
+                starts[a + i] = found[i];
+                ends[a + i] = found[i] + m;
+            }
+            count = newCount;
+            scheduleRefresh();
+            updateStatus();
+        }
+
+        private int lowerBound(int offset) {
+            int lo = 0, hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (starts[mid] < offset) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        @Override
+        public void stateChanged(ChangeEvent e) {
+            scheduleRefresh();
+        }
+
+        @Override
+        public void caretUpdate(CaretEvent e) {
+            updateStatus();
+        }
+
+        private void scheduleRefresh() {
+            if (refreshQueued) return;
+            refreshQueued = true;
+            SwingUtilities.invokeLater(this::refresh);
+        }
+
+        /** Re-creates tags for the matches inside the visible rectangle only. */
+        private void refresh() {
+            refreshQueued = false;
+            Highlighter h = area.getHighlighter();
+            for (Object tag : tags) h.removeHighlight(tag);
+            tags.clear();
+            if (searcher == null || count == 0) return;
+            Rectangle vis = area.getVisibleRect();
+            int start = area.viewToModel2D(new Point(vis.x, vis.y));
+            int end = area.viewToModel2D(new Point(vis.x + vis.width, vis.y + vis.height));
+            // a match can begin above the viewport and reach into it
+            int i = lowerBound(start);
+            while (i > 0 && ends[i - 1] > start) i--;
+            try {
+                for (; i < count && starts[i] <= end && tags.size() < MAX_TAGS; i++) {
+                    tags.add(h.addHighlight(starts[i], ends[i], painter));
+                }
+            } catch (BadLocationException ignored) {
+                // an edit is on its way; the next refresh catches up
+            }
+        }
+
+        private void updateStatus() {
+            if (searcher == null) return;
+            if (failure != null) {
+                status.setText(failure);
+                return;
+            }
+            if (!complete) {
+                status.setText("Searching...");
+                return;
+            }
+            if (count == 0) {
+                status.setText("No matches");
+                return;
+            }
+            int selStart = area.getSelectionStart();
+            int i = lowerBound(selStart);
+            if (i < count && starts[i] == selStart && ends[i] == area.getSelectionEnd()) {
+                status.setText(String.format("%,d of %,d", i + 1, count));
+            } else {
+                status.setText(String.format("%,d matches", count));
+            }
+        }
+    }
+
+    // -------------------- Line index --------------------
+    private void updateCaretStatus() {
+        EditorSession session = sessions.get(tabs.getSelectedComponent());
+        LineIndex index = session == null ? null : session.lines;
+        Optional<JTextArea> maybe = getCurrentTextArea();
+        if (index == null || maybe.isEmpty()) {
+            caretStatus.setText(" ");
+            return;
+        }
+        Caret caret = maybe.get().getCaret();
+        int dot = caret.getDot();
+        int line = index.lineOf(dot);
+        String text = String.format("Ln %,d, Col %,d", line + 1, dot - index.lineStart(line) + 1);
+        int selected = Math.abs(dot - caret.getMark());
+        if (selected > 0) text += String.format("  (%,d selected)", selected);
+        caretStatus.setText(text);
+    }
+
+    private void showGoToLineDialog() {
+        Component c = tabs.getSelectedComponent();
+        if (!(c instanceof JScrollPane sp)) return;
+        Component view = sp.getViewport().getView();
+        EditorSession session = sessions.get(c);
+        LineIndex index = session == null ? null : session.lines;
+        long lineCount = view instanceof LargeFileView lfv ? lfv.lineCount() : index != null ? index.lineCount() : 0;
+        if (lineCount == 0) return;
+        String input = JOptionPane.showInputDialog(this, String.format("Line number (1 - %,d):", lineCount),
+                "Go To Line", JOptionPane.QUESTION_MESSAGE);
+        if (input == null || input.isBlank()) return;
+        long line;
+        try {
+            line = Long.parseLong(input.trim().replace(",", ""));
+        } catch (NumberFormatException ex) {
+            Toolkit.getDefaultToolkit().beep();
+            return;
+        }
+        line = Math.max(1, Math.min(line, lineCount)) - 1;
+        if (view instanceof LargeFileView lfv) {
+            lfv.scrollToLine(line);
+        } else if (view instanceof JTextArea area && index != null) {
+            area.setCaretPosition(index.lineStart((int) line));
+            area.requestFocusInWindow();
+        }
+    }
+
+    /**
+     * Line start offsets of a document, kept in step with its edits. Line lengths (newline
+     * included) live in chunks of a few hundred, and two Fenwick trees over the chunks hold
+     * their character and line totals, so offset-to-line and line-to-offset are a tree
+     * descent plus a short scan inside one chunk. An edit only rescans the inserted text;
+     * removals are resolved from the index itself. Like the document, the last line ends
+     * in an implicit newline.
+     * <p>
+     * The index can also keep one int of lexer state per line start. Edits mark the lines
+     * after them as unknown and pull the {@link #frontier()} (the first line whose state is
+     * unconfirmed) back; {@link #damageEnd()} is the last line an edit touched, past which a
+     * recomputed state that matches the stored one means the rest are still right.
+     * <p>
+     * For a wrapping view it can also keep the number of rows each line wraps into, with a
+     * third tree over their totals so rows map to lines and back in O(log n). Lines an edit
+     * touches keep their old count, or get one estimated from their length, marked as an
+     * estimate until the view measures them.
+     */
+    private static final class LineIndex implements DocumentListener {
+        private static final int CHUNK = 512; // lines per chunk after a split; chunks split at twice this
+        static final int UNKNOWN = Integer.MIN_VALUE;
+
+        private static final class Chunk {
+            int[] lens;
+            int[] states; // null unless states are tracked
+            int[] rows; // null unless rows are tracked; negative while only an estimate
+            int count;
+            int chars;
+            int rowSum;
+
+            Chunk(int[] lens, int[] states, int[] rows, int count) {
+                this.lens = lens;
+                this.states = states;
+                this.rows = rows;
+                this.count = count;
+                sum();
+            }
+
+            void sum() {
+                chars = 0;
+                for (int i = 0; i < count; i++) chars += lens[i];
+                sumRows();
+            }
+
+            /** Recomputes the row total and returns by how much it changed. */
+            int sumRows() {
+                int old = rowSum;
+                rowSum = 0;
+                if (rows != null) {
+                    for (int i = 0; i < count; i++) rowSum += Math.abs(rows[i]);
+                }
+                return rowSum - old;
+            }
+
+            void ensureCapacity(int n) {
+                if (lens.length >= n) return;
+                int cap = Math.max(n, Math.min(2 * CHUNK, lens.length * 2));
+                lens = Arrays.copyOf(lens, cap);
+                if (states != null) states = Arrays.copyOf(states, cap);
+                if (rows != null) rows = Arrays.copyOf(rows, cap);
+            }
+
+            /** Makes room for {@code n} lines at {@code at}; their states start unknown. */
+            void open(int at, int n) {
+                ensureCapacity(count + n);
+                System.arraycopy(lens, at, lens, at + n, count - at);
+                if (states != null) {
+                    System.arraycopy(states, at, states, at + n, count - at);
+                    Arrays.fill(states, at, at + n, UNKNOWN);
+                }
+                if (rows != null) System.arraycopy(rows, at, rows, at + n, count - at);
+                count += n;
+            }
+
+            void close(int at, int n) {
+                System.arraycopy(lens, at + n, lens, at, count - at - n);
+                if (states != null) System.arraycopy(states, at + n, states, at, count - at - n);
+                if (rows != null) System.arraycopy(rows, at + n, rows, at, count - at - n);
+                count -= n;
+            }
+
+            void appendFrom(Chunk b) {
+                ensureCapacity(count + b.count);
+                System.arraycopy(b.lens, 0, lens, count, b.count);
+                if (states != null) System.arraycopy(b.states, 0, states, count, b.count);
+                if (rows != null) System.arraycopy(b.rows, 0, rows, count, b.count);
+                count += b.count;
+            }
+
+            Chunk slice(int from, int to) {
+                return new Chunk(Arrays.copyOfRange(lens, from, to),
+                        states == null ? null : Arrays.copyOfRange(states, from, to),
+                        rows == null ? null : Arrays.copyOfRange(rows, from, to), to - from);
+            }
+        }
+
+        private final Document doc;
+        private final Segment seg = new Segment();
+        private final List<Chunk> chunks = new ArrayList<>();
+        private int[] charTree = new int[16]; // Fenwick trees over chunks, 1-based
+        private int[] lineTree = new int[16];
+        private int[] rowTree = new int[16];
+        private int lines;
+        private int rowTotal;
+        private int charsPerRow; // 0 unless rows are tracked
+        private int[] breaks = new int[16];
+        private int rest; // remainder left by descend()
+        private int foundChunk, foundLine, foundCol; // set by locate()
+        private boolean tracksStates;
+        private int frontier, damageEnd = -1;
+
+        LineIndex(Document doc) {
+            this.doc = doc;
+            seg.setPartialReturn(true);
+            chunks.add(new Chunk(new int[] {1}, null, null, 1));
+            rebuild();
+            if (doc.getLength() > 0) inserted(0, doc.getLength());
+        }
+
+        int lineCount() {
+            return lines;
+        }
+
+        /** The line containing an offset, counting from 0. */
+        int lineOf(int offset) {
+            locate(Math.max(0, Math.min(offset, doc.getLength())));
+            return prefix(lineTree, foundChunk) + foundLine;
+        }
+
+        /** Offset of the first character of a line; lines past the end clamp to the last one. */
+        int lineStart(int line) {
+            line = Math.max(0, Math.min(line, lines - 1));
+            int c = descend(lineTree, line);
+            Chunk ch = chunks.get(c);
+            int offset = prefix(charTree, c);
+            for (int i = 0; i < rest; i++) offset += ch.lens[i];
+            return offset;
+        }
+
+        /** Length of a line, not counting its newline. */
+        int lineLength(int line) {
+            line = Math.max(0, Math.min(line, lines - 1));
+            int c = descend(lineTree, line);
+            return chunks.get(c).lens[rest] - 1;
+        }
+
+        /** Starts keeping a state per line, every line unknown except the first; or drops them. */
+        void trackStates(boolean track, int initial) {
+            tracksStates = track;
+            for (Chunk ch : chunks) {
+                ch.states = track ? new int[ch.lens.length] : null;
+                if (track) Arrays.fill(ch.states, UNKNOWN);
+            }
+            if (track) chunks.get(0).states[0] = initial;
+            frontier = 1;
+            damageEnd = -1;
+        }
+
+        /** The state stored for a line start; past the frontier it may be stale or UNKNOWN. */
+        int state(int line) {
+            int c = descend(lineTree, line);
+            return chunks.get(c).states[rest];
+        }
+
+        /** Stores the confirmed state of the frontier line and moves the frontier past it. */
+        void confirmState(int line, int state) {
+            int c = descend(lineTree, line);
+            int[] states = chunks.get(c).states;
+            boolean same = states[rest] == state;
+            states[rest] = state;
+            // past the damage the old states were computed from the same text, so they still hold
+            frontier = same && line > damageEnd ? lines : line + 1;
+            if (frontier == lines) damageEnd = -1;
+        }
+
+        int frontier() {
+            return Math.min(frontier, lines);
+        }
+
+        int damageEnd() {
+            return damageEnd;
+        }
+
+        /**
+         * Starts keeping the number of rows each line wraps into, every line estimated from
+         * its length at {@code charsPerRow} until it is measured; 0 drops them.
+         */
+        void trackRows(int charsPerRow) {
+            this.charsPerRow = charsPerRow;
+            for (Chunk ch : chunks) {
+                ch.rows = charsPerRow > 0 ? new int[ch.lens.length] : null;
+                for (int i = 0; ch.rows != null && i < ch.count; i++) ch.rows[i] = -estimate(ch.lens[i]);
+                ch.sumRows();
+            }
+            rebuild();
+        }
+
+        /** Rows a line wraps into; negative while that is an estimate the view has yet to measure. */
+        int rows(int line) {
+            int c = descend(lineTree, line);
+            return chunks.get(c).rows[rest];
+        }
+
+        void setRows(int line, int rows) {
+            int c = descend(lineTree, line);
+            Chunk ch = chunks.get(c);
+            int delta = rows - Math.abs(ch.rows[rest]);
+            ch.rows[rest] = rows;
+            ch.rowSum += delta;
+            add(c, 0, 0, delta);
+        }
+
+        int rowCount() {
+            return rowTotal;
+        }
+
+        /** The first row of a line. */
+        int rowOf(int line) {
+            int c = descend(lineTree, Math.max(0, Math.min(line, lines - 1)));
+            Chunk ch = chunks.get(c);
+            int row = prefix(rowTree, c);
+            for (int i = 0; i < rest; i++) row += Math.abs(ch.rows[i]);
+            return row;
+        }
+
+        /** The line a row belongs to; rows past the end clamp to the last line. */
+        int lineAtRow(int row) {
+            int c = descend(rowTree, Math.max(0, Math.min(row, rowTotal - 1)));
+            Chunk ch = chunks.get(c);
+            int j = 0;
+            for (int r = rest; r >= Math.abs(ch.rows[j]); j++) r -= Math.abs(ch.rows[j]);
+            return prefix(lineTree, c) + j;
+        }
+
+        private int estimate(int len) {
+            int text = len - 1;
+            return text <= charsPerRow ? 1 : (text - 1) / charsPerRow + 1;
+        }
+
+        private void damaged(int line, int removedLines, int addedLines) {
+            if (!tracksStates) return;
+            if (damageEnd > line + removedLines) damageEnd += addedLines - removedLines;
+            else if (damageEnd > line) damageEnd = line;
+            damageEnd = Math.max(damageEnd, line + addedLines);
+            frontier = Math.min(frontier, line + 1);
+        }
+
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            inserted(e.getOffset(), e.getLength());
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            removed(e.getOffset(), e.getLength());
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+        }
+
+        private void inserted(int offset, int length) {
+            locate(offset);
+            int c = foundChunk, j = foundLine, col = foundCol;
+            Chunk ch = chunks.get(c);
+            // the lengths of the complete lines the new text contributes
+            int n = 0, lineFrom = offset, end = offset + length;
+            try {
+                for (int pos = offset; pos < end; pos += seg.count) {
+                    doc.getText(pos, end - pos, seg);
+                    char[] a = seg.array;
+                    for (int i = seg.offset, stop = seg.offset + seg.count; i < stop; i++) {
+                        if (a[i] != '\n') continue;
+                        int at = pos + i - seg.offset;
+                        if (n == breaks.length) breaks = Arrays.copyOf(breaks, n * 2);
+                        breaks[n++] = at + 1 - lineFrom;
+                        lineFrom = at + 1;
+                    }
+                }
+            } catch (BadLocationException ex) {
+                throw new IllegalStateException(ex);
+            }
+            int[] found = breaks;
+            if (breaks.length > 64 * 1024) breaks = new int[16]; // don't hold on to a huge paste's worth
+            if (tracksStates) damaged(prefix(lineTree, c) + j, 0, n);
+            if (n == 0) {
+                ch.lens[j] += length;
+                ch.chars += length;
+                if (ch.rows != null) ch.rows[j] = -Math.abs(ch.rows[j]);
+                add(c, length, 0, 0);
+                return;
+            }
+            // line j splits around the inserted text: head + first break, the middles, then the tail
+            int oldChars = ch.chars, oldCount = ch.count, oldRows = ch.rowSum, old = ch.lens[j];
+            ch.open(j + 1, n);
+            System.arraycopy(found, 0, ch.lens, j, n);
+            ch.lens[j] += col;
+            ch.lens[j + n] = end - lineFrom + old - col;
+            ch.chars += length;
+            if (ch.rows != null) {
+                for (int k = j; k <= j + n; k++) ch.rows[k] = -estimate(ch.lens[k]);
+                ch.sumRows();
+            }
+            if (ch.count <= 2 * CHUNK) {
+                add(c, length, n, ch.rowSum - oldRows);
+                return;
+            }
+            List<Chunk> parts = new ArrayList<>(ch.count / CHUNK + 1);
+            for (int p = 0; p < ch.count; p += CHUNK) parts.add(ch.slice(p, Math.min(ch.count, p + CHUNK)));
+            if (c == chunks.size() - 1) {
+                // appending (a file streaming in) keeps the trees and extends them
+                Chunk first = parts.get(0);
+                chunks.set(c, first);
+                add(c, first.chars - oldChars, first.count - oldCount, first.rowSum - oldRows);
+                for (int p = 1; p < parts.size(); p++) append(parts.get(p));
+            } else {
+                chunks.remove(c);
+                chunks.addAll(c, parts);
+                rebuild();
+            }
+        }
+
+        private void removed(int offset, int length) {
+            // the index still describes the text before the removal
+            locate(offset);
+            int c1 = foundChunk, j1 = foundLine, col1 = foundCol;
+            locate(offset + length);
+            int c2 = foundChunk, j2 = foundLine, col2 = foundCol;
+            Chunk a = chunks.get(c1), b = chunks.get(c2);
+            if (tracksStates) {
+                int first = prefix(lineTree, c1) + j1;
+                damaged(first, prefix(lineTree, c2) + j2 - first, 0);
+            }
+            int merged = col1 + b.lens[j2] - col2;
+            if (a.rows != null) a.rows[j1] = -Math.abs(a.rows[j1]);
+            if (c1 == c2) {
+                int gone = j2 - j1;
+                a.lens[j1] = merged;
+                a.close(j1 + 1, gone);
+                a.chars -= length;
+                add(c1, -length, -gone, a.sumRows());
+                return;
+            }
+            a.lens[j1] = merged;
+            a.count = j1 + 1;
+            b.close(0, j2 + 1);
+            chunks.subList(c1 + 1, c2).clear();
+            if (b.count == 0 || a.count + b.count <= CHUNK) {
+                a.appendFrom(b);
+                chunks.remove(c1 + 1);
+            } else {
+                b.sum();
+            }
+            a.sum();
+            rebuild();
+        }
+
+        /** Finds the chunk, line within it and column of an offset. */
+        private void locate(int offset) {
+            int c = descend(charTree, offset);
+            Chunk ch = chunks.get(c);
+            int j = 0, col = rest;
+            while (col >= ch.lens[j]) col -= ch.lens[j++];
+            foundChunk = c;
+            foundLine = j;
+            foundCol = col;
+        }
+
+        /** Index of the chunk holding the {@code target}-th unit of a tree; the remainder goes to {@link #rest}. */
+        private int descend(int[] tree, int target) {
+            int n = chunks.size(), pos = 0;
+            for (int step = Integer.highestOneBit(n); step > 0; step >>= 1) {
+                int next = pos + step;
+                if (next <= n && tree[next] <= target) {
+                    pos = next;
+                    target -= tree[next];
+                }
+            }
+            rest = target;
+            return pos;
+        }
+
+        private static int prefix(int[] tree, int chunks) {
+            int sum = 0;
+            for (int i = chunks; i > 0; i -= i & -i) sum += tree[i];
+            return sum;
+        }
+
+        private void add(int chunk, int dChars, int dLines, int dRows) {
+            lines += dLines;
+            rowTotal += dRows;
+            for (int i = chunk + 1, n = chunks.size(); i <= n; i += i & -i) {
+                charTree[i] += dChars;
+                lineTree[i] += dLines;
+                rowTree[i] += dRows;
+            }
+        }
+
+        private void append(Chunk ch) {
+            chunks.add(ch);
+            int n = chunks.size();
+            ensureTrees(n);
+            int low = n - (n & -n);
+            charTree[n] = ch.chars + prefix(charTree, n - 1) - prefix(charTree, low);
+            lineTree[n] = ch.count + prefix(lineTree, n - 1) - prefix(lineTree, low);
+            rowTree[n] = ch.rowSum + prefix(rowTree, n - 1) - prefix(rowTree, low);
+            lines += ch.count;
+            rowTotal += ch.rowSum;
+        }
+
+        private void rebuild() {
+            int n = chunks.size();
+            ensureTrees(n);
+            Arrays.fill(charTree, 0);
+            Arrays.fill(lineTree, 0);
+            Arrays.fill(rowTree, 0);
+            lines = 0;
+            rowTotal = 0;
+            for (int i = 1; i <= n; i++) {
+                Chunk ch = chunks.get(i - 1);
+                lines += ch.count;
+                rowTotal += ch.rowSum;
+                charTree[i] += ch.chars;
+                lineTree[i] += ch.count;
+                rowTree[i] += ch.rowSum;
+                int up = i + (i & -i);
+                if (up <= n) {
+                    charTree[up] += charTree[i];
+                    lineTree[up] += lineTree[i];
+                    rowTree[up] += rowTree[i];
+                }
+            }
+        }
+
+        private void ensureTrees(int n) {
+            if (charTree.length <= n) {
+                int cap = Math.max(n + 1, charTree.length * 2);
+                charTree = Arrays.copyOf(charTree, cap);
+                lineTree = Arrays.copyOf(lineTree, cap);
+                rowTree = Arrays.copyOf(rowTree, cap);
+            }
+        }
+    }
+
+    // -------------------- Text statistics --------------------
+    private void updateStatsStatus() {
+        EditorSession session = sessions.get(tabs.getSelectedComponent());
+        TextStats stats = session == null ? null : session.stats;
+        statsStatus.setText(stats == null ? " " : stats.summary());
+    }
+
+    /**
+     * Word, line, character and byte counts of a document, kept exact from edit deltas.
+     * Each count only depends on a character and its neighbour (word starts, surrogate
+     * pairs), so an edit changes the totals by f(L + text + R) - f(L + R), where L and R
+     * are the characters around the edit: only the inserted or removed text is scanned.
+     * A freshly loaded file is counted once on a worker thread from a snapshot while
+     * edits keep accumulating on top of it.
+     */
+    private static final class TextStats implements DocumentListener {
+        private final PieceTableDocument doc;
+        private final Runnable onChange;
+        private final Segment seg = new Segment();
+        private final Counter totals = new Counter();
+        private boolean paused;
+        private SwingWorker<Counter, Void> recount;
+
+        TextStats(PieceTableDocument doc, Runnable onChange) {
+            this.doc = doc;
+            this.onChange = onChange;
+            seg.setPartialReturn(true);
+        }
+
+        /** Stops tracking edits until {@link #recount()}, e.g. while a file streams in. */
+        void pause() {
+            paused = true;
+        }
+
+        /** Counts the whole document again in the background. */
+        void recount() {
+            if (recount != null) recount.cancel(true);
+            PieceTableDocument.Span[] spans = doc.snapshot();
+            totals.clear();
+            paused = false;
+            SwingWorker<Counter, Void> job = new SwingWorker<>() {
+                @Override
+                protected Counter doInBackground() {
+                    Counter c = new Counter();
+                    for (PieceTableDocument.Span s : spans) {
+                        if (isCancelled()) break;
+                        c.feed(s.buf, s.start, s.len);
+                    }
+                    return c;
+                }
+
+                @Override
+                protected void done() {
+                    if (recount != this || isCancelled()) return;
+                    recount = null;
+                    try {
+                        totals.add(get(), 1);
+                    } catch (InterruptedException | ExecutionException ex) {
+                        return;
+                    }
+                    onChange.run();
+                }
+            };
+            recount = job;
+            job.execute();
+            onChange.run();
+        }
+
+        void dispose() {
+            if (recount != null) recount.cancel(true);
+            recount = null;
+        }
+
+        String summary() {
+            if (paused || recount != null) return "Counting...";
+            Object eol = doc.getProperty(DefaultEditorKit.EndOfLineStringProperty);
+            long eolBytes = ByteCost.DEFAULT.bytes(eol instanceof String str ? str : System.lineSeparator());
+            // the last line has no separator on disk
+            long bytes = totals.bytes + totals.newlines * eolBytes;
+            return String.format("%,d words  %,d lines  %,d chars  %,d bytes",
+                    totals.words, totals.newlines + 1, totals.chars, bytes);
+        }
+
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            if (paused) return;
+            int offset = e.getOffset(), end = offset + e.getLength();
+            Counter with = new Counter(), without = new Counter();
+            try {
+                int left = offset > 0 ? charAt(offset - 1) : -1;
+                int right = end < doc.getLength() ? charAt(end) : -1;
+                with.feed(left);
+                for (int pos = offset; pos < end; pos += seg.count) {
+                    doc.getText(pos, end - pos, seg);
+                    with.feed(seg.array, seg.offset, seg.count);
+                }
+                with.feed(right);
+                without.feed(left);
+                without.feed(right);
+            } catch (BadLocationException ex) {
+                throw new IllegalStateException(ex);
+            }
+            totals.add(with, 1);
+            totals.add(without, -1);
+            onChange.run();
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            if (paused) return;
+            int offset = e.getOffset();
+            Counter with = new Counter(), without = new Counter();
+            try {
+                int left = offset > 0 ? charAt(offset - 1) : -1;
+                int right = offset < doc.getLength() ? charAt(offset) : -1;
+                with.feed(left);
+                for (PieceTableDocument.Span s : doc.removedSpans()) with.feed(s.buf, s.start, s.len);
+                with.feed(right);
+                without.feed(left);
+                without.feed(right);
+            } catch (BadLocationException ex) {
+                throw new IllegalStateException(ex);
+            }
+            totals.add(with, -1);
+            totals.add(without, 1);
+            onChange.run();
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+        }
+
+        private int charAt(int offset) throws BadLocationException {
+            doc.getText(offset, 1, seg);
+            return seg.array[seg.offset];
+        }
+
+        /** Counts over a run of text; the first character is taken to follow whitespace. */
+        private static final class Counter {
+            long words, newlines, chars, bytes;
+            private char prev = ' ';
+
+            void feed(int c) {
+                if (c >= 0) feed((char) c);
+            }
+
+            void feed(char[] a, int start, int len) {
+                for (int i = start, end = start + len; i < end; i++) feed(a[i]);
+            }
+
+            private void feed(char c) {
+                if (!Character.isWhitespace(c) && Character.isWhitespace(prev)) words++;
+                chars++;
+                if (c == '\n') {
+                    newlines++;
+                } else {
+                    bytes += ByteCost.DEFAULT.cost(c);
+                    if (Character.isLowSurrogate(c) && Character.isHighSurrogate(prev)) {
+                        chars--;
+                        bytes += ByteCost.DEFAULT.pairAdjust;
+                    }
+                }
+                prev = c;
+            }
+
+            void add(Counter o, int sign) {
+                words += sign * o.words;
+                newlines += sign * o.newlines;
+                chars += sign * o.chars;
+                bytes += sign * o.bytes;
+            }
+
+            void clear() {
+                words = newlines = chars = bytes = 0;
+            }
+        }
+    }
+
+    /**
+     * Encoded size of each character in the charset files are saved in. UTF-8 is worked
+     * out arithmetically; other charsets are measured once per character and cached. A lone
+     * surrogate costs what its replacement does, and {@link #pairAdjust} corrects the sum of
+     * two lone surrogates to the size of the pair they form.
+     */
+    private static final class ByteCost {
+        static final ByteCost DEFAULT = new ByteCost(Charset.defaultCharset());
+
+        private final CharsetEncoder encoder;
+        private final boolean utf8;
+        private final byte[] table; // 0 = not measured yet
+        final int pairAdjust;
+
+        private ByteCost(Charset charset) {
+            encoder = charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            utf8 = charset.name().equals("UTF-8");
+            table = utf8 ? null : new byte[65536];
+            pairAdjust = utf8 ? 2 : measure("\uD83D\uDE00") - 2 * cost('\uD83D');
+        }
+
+        int cost(char c) {
+            if (utf8) {
+                if (c < 0x80) return 1;
+                if (c < 0x800) return 2;
+                return Character.isSurrogate(c) ? 1 : 3;
+            }
+            int n = table[c];
+            if (n == 0) table[c] = (byte) (n = measure(String.valueOf(c)));
+            return n;
+        }
+
+        long bytes(String s) {
+            long n = 0;
+            for (int i = 0; i < s.length(); i++) n += cost(s.charAt(i));
+            return n;
+        }
+
+        /** Bytes one more copy of {@code s} adds, which leaves out any byte order mark. */
+        private int measure(String s) {
+            synchronized (encoder) {
+                try {
+                    int once = encoder.encode(CharBuffer.wrap(s)).remaining();
+                    int twice = encoder.encode(CharBuffer.wrap(s + s)).remaining();
+                    return Math.max(1, twice - once);
+                } catch (CharacterCodingException ex) {
+                    return 1;
+                }
+            }
+        }
+    }
+
+    // -------------------- Syntax highlighting --------------------
+    /** What a lexer calls a run of text, with the colours it is painted in on dark and light backgrounds. */
+    private enum TokenType {
+        TEXT(null, null),
+        KEYWORD(new Color(204, 120, 50), new Color(0, 51, 179)),
+        STRING(new Color(106, 171, 115), new Color(6, 125, 23)),
+        NUMBER(new Color(104, 151, 187), new Color(23, 80, 235)),
+        COMMENT(new Color(128, 128, 128), new Color(140, 140, 140)),
+        KEY(new Color(152, 118, 170), new Color(135, 16, 148)),
+        TAG(new Color(232, 191, 106), new Color(0, 0, 128)),
+        LITERAL(new Color(204, 120, 50), new Color(0, 51, 179)),
+        ERROR(new Color(255, 107, 104), new Color(200, 30, 30)),
+        WARNING(new Color(229, 192, 123), new Color(170, 110, 0)),
+        INFO(new Color(97, 175, 239), new Color(30, 100, 200)),
+        DEBUG(new Color(120, 120, 120), new Color(150, 150, 150));
+
+        static final TokenType[] VALUES = values();
+        final Color dark, light;
+
+        TokenType(Color dark, Color light) {
+            this.dark = dark;
+            this.light = light;
+        }
+    }
+
+    /** Tokens of one line as contiguous runs; offsets are relative to the line start. */
+    private static final class Tokens {
+        int count;
+        int[] ends = new int[16];
+        byte[] types = new byte[16];
+        private int length;
+
+        void clear() {
+            count = 0;
+            length = 0;
+        }
+
+        /** Marks {@code [start, end)}; anything skipped since the last token is plain text. */
+        void add(int start, int end, TokenType type) {
+            if (start > length) push(start, TokenType.TEXT);
+            if (end > length) push(end, type);
+        }
+
+        TokenType type(int i) {
+            return TokenType.VALUES[types[i]];
+        }
+
+        private void push(int end, TokenType type) {
+            if (count > 0 && types[count - 1] == type.ordinal()) {
+                ends[count - 1] = end;
+            } else {
+                if (count == ends.length) {
+                    ends = Arrays.copyOf(ends, count * 2);
+                    types = Arrays.copyOf(types, count * 2);
+                }
+                ends[count] = end;
+                types[count++] = (byte) type.ordinal();
+            }
+            length = end;
+        }
+    }
+
+    /**
+     * Tokenizes one line at a time. The int state carries whatever spans lines (a block
+     * comment, an open tag); every lexer starts a file in state 0, and two lines that start
+     * in the same state lex the same way, which is what lets re-lexing stop early.
+     */
+    private interface Lexer {
+        /** Lexes {@code text[start, start + len)}, one line without its newline; returns the next line's state. */
+        int lex(char[] text, int start, int len, int state, Tokens out);
+
+        static Lexer forFile(File file) {
+            if (file == null) return null;
+            String name = file.getName().toLowerCase(Locale.ROOT);
+            String ext = name.substring(name.lastIndexOf('.') + 1);
+            return switch (ext) {
+                case "java" -> new JavaLexer();
+                case "json" -> new JsonLexer();
+                case "xml", "xsd", "xsl", "xslt", "svg", "pom", "html", "htm", "xhtml", "fxml", "plist" -> new XmlLexer();
+                case "yml", "yaml" -> new YamlLexer();
+                case "properties", "ini", "cfg", "conf" -> new PropertiesLexer();
+                case "log" -> new LogLexer();
+                default -> null;
+            };
+        }
+
+        static int indexOf(char[] a, int from, int end, String s) {
+            outer:
+            for (int i = from, last = end - s.length(); i <= last; i++) {
+                for (int k = 0; k < s.length(); k++) {
+                    if (a[i + k] != s.charAt(k)) continue outer;
+                }
+                return i;
+            }
+            return -1;
+        }
+
+        static boolean startsWith(char[] a, int i, int end, String s) {
+            return end - i >= s.length() && indexOf(a, i, i + s.length(), s) == i;
+        }
+
+        /** End of a quoted string opened at {@code i}, or the line end if it is not closed. */
+        static int skipQuoted(char[] a, int i, int end, char quote) {
+            for (i++; i < end; i++) {
+                if (a[i] == '\\') i++;
+                else if (a[i] == quote) return i + 1;
+            }
+            return end;
+        }
+
+        static int skipNumber(char[] a, int i, int end) {
+            while (i < end && (Character.isLetterOrDigit(a[i]) || a[i] == '_' || a[i] == '.')) {
+                char c = a[i++];
+                if ((c == 'e' || c == 'E') && i < end && (a[i] == '+' || a[i] == '-')) i++;
+            }
+            return i;
+        }
+    }
+
+    /** A fixed word list looked up straight from a char array, without building strings. */
+    private static final class Keywords {
+        private final String[][] byLength = new String[16][];
+        private final boolean ignoreCase;
+
+        Keywords(boolean ignoreCase, String... words) {
+            this.ignoreCase = ignoreCase;
+            for (String w : words) {
+                String[] bucket = byLength[w.length()];
+                bucket = bucket == null ? new String[1] : Arrays.copyOf(bucket, bucket.length + 1);
+                bucket[bucket.length - 1] = ignoreCase ? w.toLowerCase(Locale.ROOT) : w;
+                byLength[w.length()] = bucket;
+            }
+        }
+
+        boolean contains(char[] a, int start, int len) {
+            if (len >= byLength.length || byLength[len] == null) return false;
+            outer:
+            for (String w : byLength[len]) {
+                for (int k = 0; k < len; k++) {
+                    char c = ignoreCase ? Character.toLowerCase(a[start + k]) : a[start + k];
+                    if (c != w.charAt(k)) continue outer;
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static final class JavaLexer implements Lexer {
+        private static final int CODE = 0, BLOCK_COMMENT = 1, TEXT_BLOCK = 2;
+        private static final Keywords KEYWORDS = new Keywords(false, "abstract", "assert", "boolean", "break",
+                "byte", "case", "catch", "char", "class", "const", "continue", "default", "do", "double", "else",
+                "enum", "extends", "final", "finally", "float", "for", "goto", "if", "implements", "import",
+                "instanceof", "int", "interface", "long", "native", "new", "package", "permits", "private",
+                "protected", "public", "record", "return", "sealed", "short", "static", "strictfp", "super",
+                "switch", "synchronized", "this", "throw", "throws", "transient", "try", "var", "void",
+                "volatile", "while", "yield");
+        private static final Keywords LITERALS = new Keywords(false, "true", "false", "null");
+
+        @Override
+        public int lex(char[] a, int start, int len, int state, Tokens out) {
+            int end = start + len, i = start;
+            if (state == BLOCK_COMMENT || state == TEXT_BLOCK) {
+                String close = state == BLOCK_COMMENT ? "*/" : "\"\"\"";
+                int at = Lexer.indexOf(a, i, end, close);
+                TokenType type = state == BLOCK_COMMENT ? TokenType.COMMENT : TokenType.STRING;
+                if (at < 0) {
+                    out.add(0, len, type);
+                    return state;
+                }
+                i = at + close.length();
+                out.add(0, i - start, type);
+            }
+            while (i < end) {
+                char c = a[i];
+                int from = i;
+                if (c == '/' && i + 1 < end && a[i + 1] == '/') {
+                    out.add(i - start, len, TokenType.COMMENT);
+                    return CODE;
+                } else if (c == '/' && i + 1 < end && a[i + 1] == '*') {
+                    int at = Lexer.indexOf(a, i + 2, end, "*/");
+                    if (at < 0) {
+                        out.add(from - start, len, TokenType.COMMENT);
+                        return BLOCK_COMMENT;
+                    }
+                    i = at + 2;
+                    out.add(from - start, i - start, TokenType.COMMENT);
+                } else if (Lexer.startsWith(a, i, end, "\"\"\"")) {
+                    int at = Lexer.indexOf(a, i + 3, end, "\"\"\"");
+                    if (at < 0) {
+                        out.add(from - start, len, TokenType.STRING);
+                        return TEXT_BLOCK;
+                    }
+                    i = at + 3;
+                    out.add(from - start, i - start, TokenType.STRING);
+                } else if (c == '"' || c == '\'') {
+                    i = Lexer.skipQuoted(a, i, end, c);
+                    out.add(from - start, i - start, TokenType.STRING);
+                } else if (Character.isDigit(c)) {
+                    i = Lexer.skipNumber(a, i, end);
+                    out.add(from - start, i - start, TokenType.NUMBER);
+                } else if (Character.isJavaIdentifierStart(c)) {
+                    while (i < end && Character.isJavaIdentifierPart(a[i])) i++;
+                    if (KEYWORDS.contains(a, from, i - from)) out.add(from - start, i - start, TokenType.KEYWORD);
+                    else if (LITERALS.contains(a, from, i - from)) out.add(from - start, i - start, TokenType.LITERAL);
+                    else if (from > start && a[from - 1] == '@') out.add(from - 1 - start, i - start, TokenType.KEY);
+                } else {
+                    i++;
+                }
+            }
+            return CODE;
+        }
+    }
+
+    private static final class JsonLexer implements Lexer {
+        private static final Keywords LITERALS = new Keywords(false, "true", "false", "null");
+
+        @Override
+        public int lex(char[] a, int start, int len, int state, Tokens out) {
+            int end = start + len, i = start;
+            while (i < end) {
+                char c = a[i];
+                int from = i;
+                if (c == '"') {
+                    i = Lexer.skipQuoted(a, i, end, c);
+                    int k = i;
+                    while (k < end && Character.isWhitespace(a[k])) k++;
+                    out.add(from - start, i - start, k < end && a[k] == ':' ? TokenType.KEY : TokenType.STRING);
+                } else if (Character.isDigit(c) || c == '-') {
+                    i = Lexer.skipNumber(a, i + 1, end);
+                    out.add(from - start, i - start, TokenType.NUMBER);
+                } else if (Character.isLetter(c)) {
+                    while (i < end && Character.isLetter(a[i])) i++;
+                    if (LITERALS.contains(a, from, i - from)) out.add(from - start, i - start, TokenType.LITERAL);
+                } else {
+                    i++;
+                }
+            }
+            return 0;
+        }
+    }
+
+    private static final class XmlLexer implements Lexer {
+        private static final int TEXT = 0, COMMENT = 1, TAG = 2, CDATA = 3;
+
+        @Override
+        public int lex(char[] a, int start, int len, int state, Tokens out) {
+            int end = start + len, i = start;
+            while (i < end) {
+                int from = i;
+                char c = a[i];
+                switch (state) {
+                    case COMMENT, CDATA -> {
+                        String close = state == COMMENT ? "-->" : "]]>";
+                        TokenType type = state == COMMENT ? TokenType.COMMENT : TokenType.STRING;
+                        int at = Lexer.indexOf(a, i, end, close);
+                        if (at < 0) {
+                            out.add(from - start, len, type);
+                            return state;
+                        }
+                        i = at + 3;
+                        out.add(from - start, i - start, type);
+                        state = TEXT;
+                    }
+                    case TAG -> {
+                        if (c == '>' || (c == '/' || c == '?') && i + 1 < end && a[i + 1] == '>') {
+                            i += c == '>' ? 1 : 2;
+                            out.add(from - start, i - start, TokenType.TAG);
+                            state = TEXT;
+                        } else if (c == '"' || c == '\'') {
+                            i = Lexer.skipQuoted(a, i, end, c);
+                            out.add(from - start, i - start, TokenType.STRING);
+                        } else if (Character.isWhitespace(c) || c == '=') {
+                            i++;
+                        } else {
+                            while (i < end && !Character.isWhitespace(a[i]) && "=>/\"'".indexOf(a[i]) < 0) i++;
+                            if (i == from) i++;
+                            out.add(from - start, i - start, TokenType.KEY);
+                        }
+                    }
+                    default -> {
+                        if (Lexer.startsWith(a, i, end, "<!--")) {
+                            state = COMMENT;
+                            out.add(from - start, (i += 4) - start, TokenType.COMMENT);
+                        } else if (Lexer.startsWith(a, i, end, "<![CDATA[")) {
+                            state = CDATA;
+                            out.add(from - start, (i += 9) - start, TokenType.TAG);
+                        } else if (c == '<') {
+                            i++;
+                            if (i < end && "/?!".indexOf(a[i]) >= 0) i++;
+                            while (i < end && !Character.isWhitespace(a[i]) && "/>".indexOf(a[i]) < 0) i++;
+                            out.add(from - start, i - start, TokenType.TAG);
+                            state = TAG;
+                        } else if (c == '&') {
+                            int semi = Lexer.indexOf(a, i, Math.min(end, i + 12), ";");
+                            i = semi < 0 ? i + 1 : semi + 1;
+                            if (semi >= 0) out.add(from - start, i - start, TokenType.LITERAL);
+                        } else {
+                            i++;
+                        }
+                    }
+                }
+            }
+            return state;
+        }
+    }
+
+    private static final class YamlLexer implements Lexer {
+        private static final Keywords LITERALS = new Keywords(true, "true", "false", "null", "yes", "no", "on", "off", "~");
+
+        @Override
+        public int lex(char[] a, int start, int len, int state, Tokens out) {
+            int end = start + len, i = start;
+            if (Lexer.startsWith(a, i, end, "---") || Lexer.startsWith(a, i, end, "...")) {
+                out.add(0, 3, TokenType.KEYWORD);
+                i += 3;
+            }
+            while (i < end && (a[i] == ' ' || a[i] == '-' && (i + 1 == end || a[i + 1] == ' '))) i++;
+            // a key runs up to the first ": " outside quotes
+            int colon = -1;
+            for (int k = i; k < end && a[k] != '#'; k++) {
+                if (a[k] == '"' || a[k] == '\'') k = Lexer.skipQuoted(a, k, end, a[k]) - 1;
+                else if (a[k] == ':' && (k + 1 == end || a[k + 1] == ' ')) {
+                    colon = k;
+                    break;
+                }
+            }
+            if (colon > i) {
+                out.add(i - start, colon - start, TokenType.KEY);
+                i = colon + 1;
+            }
+            while (i < end) {
+                char c = a[i];
+                int from = i;
+                if (c == '#' && (i == start || a[i - 1] == ' ')) {
+                    out.add(i - start, len, TokenType.COMMENT);
+                    break;
+                } else if (c == '"' || c == '\'') {
+                    i = Lexer.skipQuoted(a, i, end, c);
+                    out.add(from - start, i - start, TokenType.STRING);
+                } else if (c == '&' || c == '*') {
+                    while (i < end && a[i] != ' ') i++;
+                    out.add(from - start, i - start, TokenType.TAG);
+                } else if (c != ' ') {
+                    while (i < end && a[i] != ' ' && a[i] != ',' && a[i] != ']' && a[i] != '}') i++;
+                    if (i == from) i++;
+                    if (LITERALS.contains(a, from, i - from)) out.add(from - start, i - start, TokenType.LITERAL);
+                    else if (Character.isDigit(c) || c == '-' && i - from > 1 && Character.isDigit(a[from + 1])) {
+                        if (Lexer.skipNumber(a, from + 1, i) == i) out.add(from - start, i - start, TokenType.NUMBER);
+                    }
+                } else {
+                    i++;
+                }
+            }
+            return 0;
+        }
+    }
+
+    private static final class PropertiesLexer implements Lexer {
+        private static final int KEY = 0, CONTINUATION = 1;
+
+        @Override
+        public int lex(char[] a, int start, int len, int state, Tokens out) {
+            int end = start + len, i = start;
+            if (state == KEY) {
+                while (i < end && Character.isWhitespace(a[i])) i++;
+                if (i < end && (a[i] == '#' || a[i] == '!' || a[i] == ';')) {
+                    out.add(i - start, len, TokenType.COMMENT);
+                    return KEY; // comments do not continue
+                }
+                if (i < end && a[i] == '[') {
+                    int close = Lexer.indexOf(a, i, end, "]");
+                    out.add(i - start, close < 0 ? len : close + 1 - start, TokenType.TAG);
+                    return KEY;
+                }
+                int from = i;
+                while (i < end && a[i] != '=' && a[i] != ':' && !Character.isWhitespace(a[i])) {
+                    if (a[i] == '\\') i++;
+                    i++;
+                }
+                out.add(from - start, Math.min(i, end) - start, TokenType.KEY);
+            }
+            int slashes = 0;
+            for (int k = end - 1; k >= start && a[k] == '\\'; k--) slashes++;
+            return slashes % 2 == 1 ? CONTINUATION : KEY;
+        }
+    }
+
+    private static final class LogLexer implements Lexer {
+        private static final Keywords ERRORS = new Keywords(false, "ERROR", "FATAL", "SEVERE", "CRITICAL", "ERR");
+        private static final Keywords WARNINGS = new Keywords(false, "WARN", "WARNING");
+        private static final Keywords INFOS = new Keywords(false, "INFO", "NOTICE");
+        private static final Keywords DEBUGS = new Keywords(false, "DEBUG", "TRACE", "FINE", "FINER", "FINEST");
+
+        @Override
+        public int lex(char[] a, int start, int len, int state, Tokens out) {
+            int end = start + len, i = start;
+            while (i < end && a[i] == ' ' || i < end && a[i] == '\t') i++;
+            if (Lexer.startsWith(a, i, end, "at ") || Lexer.startsWith(a, i, end, "...")) {
+                out.add(i - start, len, TokenType.COMMENT); // stack trace frame
+                return 0;
+            }
+            if (Lexer.startsWith(a, i, end, "Caused by:")) {
+                out.add(i - start, len, TokenType.ERROR);
+                return 0;
+            }
+            if (i < end && Character.isDigit(a[i])) {
+                // leading timestamp: digits and separators, spaces only between digits
+                int from = i;
+                while (i < end && (Character.isDigit(a[i]) || "-:.,/+TZ".indexOf(a[i]) >= 0
+                        || a[i] == ' ' && i + 1 < end && Character.isDigit(a[i + 1]))) i++;
+                out.add(from - start, i - start, TokenType.NUMBER);
+            }
+            while (i < end) {
+                char c = a[i];
+                int from = i;
+                if (Character.isLetter(c)) {
+                    while (i < end && Character.isLetter(a[i])) i++;
+                    int n = i - from;
+                    TokenType level = ERRORS.contains(a, from, n) ? TokenType.ERROR
+                            : WARNINGS.contains(a, from, n) ? TokenType.WARNING
+                            : INFOS.contains(a, from, n) ? TokenType.INFO
+                            : DEBUGS.contains(a, from, n) ? TokenType.DEBUG : null;
+                    if (level != null) out.add(from - start, i - start, level);
+                } else if (c == '"') {
+                    i = Lexer.skipQuoted(a, i, end, c);
+                    out.add(from - start, i - start, TokenType.STRING);
+                } else {
+                    i++;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Keeps a tab's lexer states current and paints tokens. States live in the tab's
+     * LineIndex, one per line start. After an edit the lines from the edit on are re-lexed
+     * on the EDT in short slices until the state at a line start past the edit comes out
+     * as before; a newly opened file is lexed the same way while it is already on screen.
+     * Painting a line whose state is not known yet uses the stale one (or the initial
+     * state) and gets repainted when the slices catch up, unless the frontier is close
+     * enough to lex up to it on the spot.
+     */
+    private final class SyntaxHighlighter implements DocumentListener {
+        private static final long SLICE_NANOS = 8_000_000L;
+        private static final int CATCH_UP_LINES = 256;
+
+        private final JTextArea area;
+        private final PieceTableDocument doc;
+        private final LineIndex lines;
+        private final Segment lineText = new Segment();
+        private final Segment run = new Segment();
+        private final Tokens scratch = new Tokens();
+        private final Tokens painted = new Tokens();
+        private final Segment paintText = new Segment();
+        private int paintedStart = -1, paintedState; // the line in painted, until the next edit
+        private Lexer lexer;
+        private boolean scheduled;
+
+        SyntaxHighlighter(JTextArea area, PieceTableDocument doc, LineIndex lines) {
+            this.area = area;
+            this.doc = doc;
+            this.lines = lines;
+        }
+
+        boolean active() {
+            return lexer != null;
+        }
+
+        void setLexer(Lexer lexer) {
+            if (lexer == null ? this.lexer == null : this.lexer != null && this.lexer.getClass() == lexer.getClass()) return;
+            this.lexer = lexer;
+            lines.trackStates(lexer != null, 0);
+            paintedStart = -1;
+            schedule();
+            area.repaint();
+        }
+
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            paintedStart = -1;
+            schedule();
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            paintedStart = -1;
+            schedule();
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+        }
+
+        private void schedule() {
+            if (scheduled || lexer == null || lines.frontier() >= lines.lineCount()) return;
+            scheduled = true;
+            SwingUtilities.invokeLater(this::lexSlice);
+        }
+
+        private void lexSlice() {
+            scheduled = false;
+            // a closed tab is no longer displayable; stop there
+            if (lexer == null || !area.isDisplayable()) return;
+            long deadline = System.nanoTime() + SLICE_NANOS;
+            int firstChanged = Integer.MAX_VALUE;
+            while (lines.frontier() < lines.lineCount() && System.nanoTime() < deadline) {
+                int line = lines.frontier();
+                if (advance()) firstChanged = Math.min(firstChanged, line);
+            }
+            if (firstChanged != Integer.MAX_VALUE) {
+                Rectangle visible = area.getVisibleRect();
+                int last = lines.lineOf(area.viewToModel2D(new Point(visible.x + visible.width, visible.y + visible.height)));
+                if (firstChanged <= last) area.repaint(visible);
+            }
+            schedule();
+        }
+
+        /** Lexes the line before the frontier to confirm the frontier line's state; returns whether it changed. */
+        private boolean advance() {
+            int line = lines.frontier();
+            int before = lines.state(line);
+            int state = lex(line - 1, lines.state(line - 1), scratch);
+            lines.confirmState(line, state);
+            return before != state;
+        }
+
+        private int lex(int line, int state, Tokens out) {
+            out.clear();
+            // a giant line stays plain and passes its start state on unchanged
+            if (lines.lineLength(line) > LONG_LINE_THRESHOLD) return state;
+            try {
+                doc.getText(lines.lineStart(line), lines.lineLength(line), lineText);
+            } catch (BadLocationException ex) {
+                return state;
+            }
+            return lexer.lex(lineText.array, lineText.offset, lineText.count, state, out);
+        }
+
+        private Tokens tokens(int line, int lineStart) {
+            int frontier = lines.frontier();
+            if (line >= frontier && line - frontier < CATCH_UP_LINES) {
+                while (lines.frontier() <= line) advance();
+            }
+            int state = lines.state(line);
+            if (state == LineIndex.UNKNOWN) state = 0;
+            if (paintedStart != lineStart || paintedState != state) {
+                lex(line, state, painted);
+                paintedStart = lineStart;
+                paintedState = state;
+            }
+            return painted;
+        }
+
+        /** Paints {@code [p0, p1)}, all on one line, in token colours; returns the x it ended at. */
+        float drawText(Graphics2D g, float x, float y, int p0, int p1, RunPainter painter) throws BadLocationException {
+            int line = lines.lineOf(p0);
+            int lineStart = lines.lineStart(line);
+            Tokens tokens = tokens(line, lineStart);
+            Segment text = paintText;
+            doc.getText(p0, p1 - p0, text);
+            Color plain = area.getForeground();
+            int i = 0;
+            while (i < tokens.count && lineStart + tokens.ends[i] <= p0) i++;
+            for (int pos = p0; pos < p1; i++) {
+                int runEnd = i < tokens.count ? Math.min(p1, lineStart + tokens.ends[i]) : p1;
+                Color color = i < tokens.count ? tokenColor(tokens.type(i)) : null;
+                g.setColor(color != null ? color : plain);
+                run.array = text.array;
+                run.offset = text.offset + pos - p0;
+                run.count = runEnd - pos;
+                x = painter.draw(g, run, x, y, pos);
+                pos = runEnd;
+            }
+            return x;
+        }
+    }
+
+    /** Draws a run of one line's text in the current colour; returns the x it ended at. */
+    private interface RunPainter {
+        float draw(Graphics2D g, Segment run, float x, float y, int offset);
+    }
+
+    private Color tokenColor(TokenType type) {
+        return palette().tokens[type.ordinal()];
+    }
+
+    /**
+     * The editor's text area. Its UI is always {@link EditorAreaUI}, also after a look and
+     * feel or theme switch re-creates UIs, so its views stay the highlighting ones.
+     */
+    private class EditorArea extends JTextArea {
+        SyntaxHighlighter syntax;
+        LineIndex lines;
+
+        EditorArea(Document doc) {
+            super(doc);
+        }
+
+        @Override
+        public JPopupMenu getComponentPopupMenu() {
+            return editorPopup();
+        }
+
+        @Override
+        public void updateUI() {
+            setUI(new EditorAreaUI());
+            // the new UI registered its document listener last, so it would now hear of edits
+            // before the line index, which the views expect to be current already
+            if (lines != null) {
+                getDocument().removeDocumentListener(lines);
+                getDocument().addDocumentListener(lines);
+            }
+        }
+    }
+
+    private final class EditorAreaUI extends BasicTextAreaUI {
+        @Override
+        public View create(Element elem) {
+            // bidi text needs the look and feel's own views
+            if (Boolean.TRUE.equals(elem.getDocument().getProperty("i18n"))) return super.create(elem);
+            JTextArea area = (JTextArea) getComponent();
+            if (!area.getLineWrap()) return new HighlightingPlainView(elem);
+            return area instanceof EditorArea ea && ea.lines != null
+                    ? new WrapView(elem, ea.lines, area.getWrapStyleWord())
+                    : new HighlightingWrappedView(elem, area.getWrapStyleWord());
+        }
+    }
+
+    private static SyntaxHighlighter syntaxOf(Container host) {
+        return host instanceof EditorArea ea && ea.syntax != null && ea.syntax.active() && ea.isEnabled() ? ea.syntax : null;
+    }
+
+    private final class HighlightingPlainView extends PlainView {
+        private final RunPainter tabbed = (g, run, x, y, offset) -> Utilities.drawTabbedText(run, x, y, g, this, offset);
+
+        HighlightingPlainView(Element elem) {
+            super(elem);
+        }
+
+        @Override
+        protected float drawUnselectedText(Graphics2D g, float x, float y, int p0, int p1) throws BadLocationException {
+            SyntaxHighlighter syntax = syntaxOf(getContainer());
+            return syntax != null ? syntax.drawText(g, x, y, p0, p1, tabbed) : super.drawUnselectedText(g, x, y, p0, p1);
+        }
+    }
+
+    private final class HighlightingWrappedView extends WrappedPlainView {
+        private final RunPainter tabbed = (g, run, x, y, offset) -> Utilities.drawTabbedText(run, x, y, g, this, offset);
+
+        HighlightingWrappedView(Element elem, boolean wordWrap) {
+            super(elem, wordWrap);
+        }
+
+        @Override
+        protected float drawUnselectedText(Graphics2D g, float x, float y, int p0, int p1) throws BadLocationException {
+            SyntaxHighlighter syntax = syntaxOf(getContainer());
+            return syntax != null ? syntax.drawText(g, x, y, p0, p1, tabbed) : super.drawUnselectedText(g, x, y, p0, p1);
+        }
+    }
+
+    // -------------------- Wrap layout --------------------
+    /**
+     * Soft-wrapping view of an editor tab. WrappedPlainView keeps a child view per line and
+     * breaks every line again whenever the width changes; this view keeps each line's row
+     * count in the tab's LineIndex instead, whose tree maps rows to lines and back in
+     * O(log n). After a width change all counts become estimates from the line lengths:
+     * lines are measured as they are painted, the rest in short EDT slices that keep the
+     * first visible line where it is while the counts above it settle. Edits measure only
+     * the lines they touch.
+     * <p>
+     * With a monospaced font (the default Consolas), lines of printable ASCII and tabs take
+     * a fast path: x is the column times the advance, so breaking rows, caret placement and
+     * hit testing need no font measurement, and rows are drawn from cached glyph vectors
+     * laid out on that same grid. Other lines go through the usual FontMetrics paths.
+     * <p>
+     * Lines over {@link #LONG_LINE_THRESHOLD} (minified JSON, some logs) are never measured
+     * as a whole: they are cut into rows of a fixed number of characters, so their row
+     * count and row bounds are arithmetic and caret, hit testing and painting only ever
+     * look at the one row involved.
+     */
+    private final class WrapView extends View implements TabExpander {
+        private static final long SLICE_NANOS = 8_000_000L;
+        private static final int SYNC_LINES = 2000; // edits touching more lines are measured in slices
+        private static final int GLYPH_RUNS = 4096;
+
+        private final LineIndex lines;
+        private final boolean wordWrap;
+        private final Segment text = new Segment();
+        private final Segment run = new Segment();
+        private int[] ends = new int[16]; // row ends of the line last broken
+        private int brokenStart = -1, brokenEnd, brokenRows;
+        private boolean brokenFast; // the line last broken is on the monospace grid
+        private final Map<String, GlyphVector> glyphRuns = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, GlyphVector> eldest) {
+                return size() > GLYPH_RUNS;
+            }
+        };
+        private FontRenderContext glyphContext;
+        private boolean paintingFast;
+        private int segmentChars = 1024; // characters per row of a long line
+        private FontMetrics metrics;
+        private int advance; // > 0 when printable ASCII is monospaced
+        private int lineHeight;
+        private float tabSize;
+        private int tabBase;
+        private int width; // 0 until laid out
+        private int measureCursor;
+        private boolean scheduled;
+        private int sel0, sel1;
+        private Color unselected, selected;
+
+        WrapView(Element elem, LineIndex lines, boolean wordWrap) {
+            super(elem);
+            this.lines = lines;
+            this.wordWrap = wordWrap;
+        }
+
+        @Override
+        public void setParent(View parent) {
+            super.setParent(parent);
+            if (parent == null) {
+                lines.trackRows(0);
+                return;
+            }
+            updateMetrics();
+            resetRows();
+        }
+
+        private void updateMetrics() {
+            JTextComponent host = (JTextComponent) getContainer();
+            metrics = host.getFontMetrics(host.getFont());
+            lineHeight = Math.max(1, metrics.getHeight());
+            advance = metrics.charWidth('m');
+            for (char c = ' '; c <= '~' && advance > 0; c++) {
+                if (metrics.charWidth(c) != advance) advance = 0;
+            }
+            Object size = getDocument().getProperty(PlainDocument.tabSizeAttribute);
+            tabSize = (size instanceof Integer n ? n : 8) * metrics.charWidth('m');
+            tabBase = host.getInsets().left;
+        }
+
+        private void resetRows() {
+            float average = advance > 0 ? advance : metrics.stringWidth("abcdefghijklmnopqrstuvwxyz") / 26f;
+            int perRow = Math.max(1, (int) (width / Math.max(1f, average)));
+            segmentChars = width == 0 ? 1024 : perRow;
+            lines.trackRows(width == 0 ? Integer.MAX_VALUE : perRow);
+            brokenStart = -1;
+            measureCursor = 0;
+            schedule();
+        }
+
+        @Override
+        public void setSize(float w, float h) {
+            // an area that has not been laid out yet is sized to Integer.MAX_VALUE
+            int newWidth = w >= Integer.MAX_VALUE ? 0 : (int) w;
+            if (newWidth == width) return;
+            width = newWidth;
+            resetRows();
+            preferenceChanged(null, true, true);
+        }
+
+        @Override
+        public float getPreferredSpan(int axis) {
+            if (axis == X_AXIS) return width == 0 ? 100f : width;
+            return (float) lines.rowCount() * lineHeight;
+        }
+
+        @Override
+        public float getMinimumSpan(int axis) {
+            return axis == X_AXIS ? 0 : getPreferredSpan(axis);
+        }
+
+        @Override
+        public float getMaximumSpan(int axis) {
+            return axis == X_AXIS ? Integer.MAX_VALUE : getPreferredSpan(axis);
+        }
+
+        @Override
+        public float nextTabStop(float x, int tabOffset) {
+            if (tabSize == 0) return x;
+            int tabs = (int) ((x - tabBase) / tabSize);
+            return tabBase + (tabs + 1) * tabSize;
+        }
+
+        /**
+         * Breaks {@code [start, end)}, one line with its newline, into rows; their ends go to
+         * {@link #ends}, read back through {@link #rowStart} and {@link #rowEnd}.
+         */
+        private int breakLine(int start, int end) {
+            if (start == brokenStart && end == brokenEnd) return brokenRows;
+            if (end - start > LONG_LINE_THRESHOLD) {
+                brokenStart = start;
+                brokenEnd = end;
+                brokenFast = false;
+                return brokenRows = (end - start - 2) / segmentChars + 1;
+            }
+            loadText(start, end);
+            brokenFast = onGrid(text);
+            int n = 0;
+            for (int p0 = start; p0 < end; ) {
+                int p = end;
+                if (width > 0 && brokenFast) {
+                    p = gridBreak(p0 - start, end - start) + start;
+                } else if (width > 0) {
+                    run.array = text.array;
+                    run.offset = text.offset + p0 - start;
+                    run.count = end - p0;
+                    float x0 = tabBase, x1 = tabBase + width;
+                    p = p0 + (wordWrap
+                            ? Utilities.getBreakLocation(run, metrics, x0, x1, this, p0)
+                            : Utilities.getTabbedTextOffset(run, metrics, x0, x1, this, p0, false));
+                }
+                p0 = p == p0 ? p + 1 : p;
+                if (n == ends.length) ends = Arrays.copyOf(ends, n * 2);
+                ends[n++] = p0;
+            }
+            brokenStart = start;
+            brokenEnd = end;
+            return brokenRows = n;
+        }
+
+        /** Whether a line can use the monospace grid: printable ASCII and tabs only. */
+        private boolean onGrid(Segment s) {
+            if (advance == 0) return false;
+            for (int i = s.offset, end = s.offset + s.count; i < end; i++) {
+                char c = s.array[i];
+                if ((c < ' ' || c > '~') && c != '\t' && c != '\n') return false;
+            }
+            return true;
+        }
+
+        /** x after the grid text {@code [from, to)} of the loaded line, starting at x0. */
+        private float gridX(float x0, int from, int to) {
+            float x = x0;
+            for (int i = text.offset + from, end = text.offset + to; i < end; i++) {
+                char c = text.array[i];
+                if (c == '\t') x = nextTabStop(x, 0);
+                else if (c != '\n') x += advance;
+            }
+            return x;
+        }
+
+        /** Index in the loaded line of the first character not fully left of {@code limit}, from {@code from}. */
+        private int gridOffset(int from, int to, float x0, float limit) {
+            float x = x0;
+            for (int i = from; i < to; i++) {
+                char c = text.array[text.offset + i];
+                if (c == '\n') return to; // the newline takes no room
+                x = c == '\t' ? nextTabStop(x, 0) : x + advance;
+                if (x > limit) return i;
+            }
+            return to;
+        }
+
+        /** Where the row starting at {@code from} of the loaded line ends, like Utilities.getBreakLocation. */
+        private int gridBreak(int from, int to) {
+            int index = gridOffset(from, to, tabBase, tabBase + width);
+            if (index >= to - 1 || !wordWrap) return index;
+            for (int i = index; i >= from; i--) {
+                if (Character.isWhitespace(text.array[text.offset + i])) return i + 1;
+            }
+            return index;
+        }
+
+        /** Draws a tab-free stretch of grid text from the glyph vector cache. */
+        private float drawGrid(Graphics2D g, Segment run, float x, float y) {
+            FontRenderContext frc = g.getFontRenderContext();
+            if (!frc.equals(glyphContext)) {
+                glyphRuns.clear();
+                glyphContext = frc;
+            }
+            String key = new String(run.array, run.offset, run.count);
+            GlyphVector glyphs = glyphRuns.get(key);
+            if (glyphs == null) {
+                glyphs = g.getFont().createGlyphVector(frc, key);
+                // pin every glyph to the grid the layout was computed on
+                for (int i = 0; i <= run.count; i++) glyphs.setGlyphPosition(i, new Point2D.Float(i * advance, 0));
+                glyphRuns.put(key, glyphs);
+            }
+            g.drawGlyphVector(glyphs, x, y);
+            return x + run.count * advance;
+        }
+
+        private float drawRun(Graphics2D g, Segment run, float x, float y, int offset) {
+            if (!paintingFast) return Utilities.drawTabbedText(run, x, y, g, this, offset);
+            Segment part = new Segment(run.array, run.offset, 0);
+            for (int i = run.offset, end = run.offset + run.count; i <= end; i++) {
+                char c = i < end ? run.array[i] : '\t';
+                if (c != '\t' && c != '\n') continue;
+                part.count = i - part.offset;
+                if (part.count > 0) x = drawGrid(g, part, x, y);
+                if (c == '\t' && i < end) x = nextTabStop(x, offset + i - run.offset);
+                part.offset = i + 1;
+            }
+            return x;
+        }
+
+        private int rowStart(int start, int end, int row) {
+            if (end - start > LONG_LINE_THRESHOLD) return start + row * segmentChars;
+            return row == 0 ? start : ends[row - 1];
+        }
+
+        private int rowEnd(int start, int end, int rows, int row) {
+            if (row == rows - 1) return end;
+            return end - start > LONG_LINE_THRESHOLD ? start + (row + 1) * segmentChars : ends[row];
+        }
+
+        /** The row holding {@code offset} of the line {@code [start, end)}, just broken into {@code rows}. */
+        private int rowAt(int start, int end, int rows, int offset) {
+            if (end - start > LONG_LINE_THRESHOLD) return Math.min(rows - 1, (offset - start) / segmentChars);
+            int row = 0;
+            while (row < rows - 1 && ends[row] <= offset) row++;
+            return row;
+        }
+
+        private int lineEnd(int line, int start) {
+            return start + lines.lineLength(line) + 1;
+        }
+
+        /** Measures a line and stores its row count; returns whether the count changed. */
+        private boolean measure(int line) {
+            int start = lines.lineStart(line);
+            int n = breakLine(start, lineEnd(line, start));
+            int old = lines.rows(line);
+            if (old != n) lines.setRows(line, n);
+            return Math.abs(old) != n;
+        }
+
+        private void loadText(int p0, int p1) {
+            try {
+                getDocument().getText(p0, p1 - p0, text);
+            } catch (BadLocationException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        private void schedule() {
+            if (scheduled || getParent() == null) return;
+            scheduled = true;
+            SwingUtilities.invokeLater(this::measureSlice);
+        }
+
+        private void measureSlice() {
+            scheduled = false;
+            // the view has been replaced (font, wrap style) or the tab closed
+            if (getParent() == null || !getContainer().isDisplayable()) return;
+            JTextComponent host = (JTextComponent) getContainer();
+            Rectangle visible = host.getVisibleRect();
+            int anchor = lines.lineAtRow((visible.y - host.getInsets().top) / lineHeight);
+            int shift = 0, count = lines.lineCount();
+            boolean changed = false;
+            long deadline = System.nanoTime() + SLICE_NANOS;
+            while (measureCursor < count && System.nanoTime() < deadline) {
+                for (int k = 0; k < 64 && measureCursor < count; k++, measureCursor++) {
+                    int old = lines.rows(measureCursor);
+                    if (old >= 0 || !measure(measureCursor)) continue;
+                    changed = true;
+                    if (measureCursor < anchor) shift += lines.rows(measureCursor) + old;
+                }
+            }
+            if (changed) {
+                preferenceChanged(null, false, true);
+                JViewport viewport = (JViewport) SwingUtilities.getAncestorOfClass(JViewport.class, host);
+                if (shift != 0 && viewport != null) {
+                    viewport.getParent().validate();
+                    Point p = viewport.getViewPosition();
+                    p.y = Math.max(0, p.y + shift * lineHeight);
+                    viewport.setViewPosition(p);
+                }
+            }
+            if (measureCursor < count) schedule();
+        }
+
+        @Override
+        public void paint(Graphics g, Shape a) {
+            Rectangle alloc = a.getBounds();
+            tabBase = alloc.x;
+            JTextComponent host = (JTextComponent) getContainer();
+            sel0 = host.getSelectionStart();
+            sel1 = host.getSelectionEnd();
+            unselected = host.isEnabled() ? host.getForeground() : host.getDisabledTextColor();
+            selected = host.getCaret().isSelectionVisible() && host.getHighlighter() != null
+                    ? host.getSelectedTextColor() : unselected;
+            g.setFont(host.getFont());
+            Rectangle clip = g.getClipBounds();
+            if (clip == null) clip = alloc;
+            int firstRow = Math.max(0, (clip.y - alloc.y) / lineHeight);
+            int lastRow = (clip.y + clip.height - alloc.y - 1) / lineHeight;
+            int first = lines.lineAtRow(firstRow), count = lines.lineCount();
+            // measure what is about to be drawn; lines above keep their estimates, so nothing on screen moves
+            boolean changed = false;
+            for (int line = first; line < count && lines.rowOf(line) <= lastRow; line++) {
+                if (lines.rows(line) < 0) changed |= measure(line);
+            }
+            if (changed) preferenceChanged(null, false, true);
+
+            Highlighter h = host.getHighlighter();
+            LayeredHighlighter layered = h instanceof LayeredHighlighter lh ? lh : null;
+            int y = alloc.y + lines.rowOf(first) * lineHeight;
+            for (int line = first; line < count && y <= clip.y + clip.height; line++) {
+                int start = lines.lineStart(line), end = lineEnd(line, start);
+                int n = breakLine(start, end);
+                paintingFast = brokenFast;
+                // skip the rows above the clip, there can be a great many in a long line
+                int skip = Math.max(0, (clip.y - y) / lineHeight);
+                y += skip * lineHeight;
+                for (int i = skip; i < n && y <= clip.y + clip.height; i++, y += lineHeight) {
+                    int p0 = rowStart(start, end, i), p1 = rowEnd(start, end, n, i);
+                    if (layered != null) layered.paintLayeredHighlights(g, p0, p1 == end ? p1 - 1 : p1, a, host, this);
+                    try {
+                        drawRow(g, alloc.x, y + metrics.getAscent(), p0, Math.min(p1, getDocument().getLength()));
+                    } catch (BadLocationException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+            }
+        }
+
+        private void drawRow(Graphics g, float x, float y, int p0, int p1) throws BadLocationException {
+            if (sel0 == sel1 || selected == unselected || sel1 <= p0 || sel0 >= p1) {
+                drawText(g, x, y, p0, p1, false);
+                return;
+            }
+            int s0 = Math.max(p0, sel0), s1 = Math.min(p1, sel1);
+            x = drawText(g, x, y, p0, s0, false);
+            x = drawText(g, x, y, s0, s1, true);
+            drawText(g, x, y, s1, p1, false);
+        }
+
+        private float drawText(Graphics g, float x, float y, int p0, int p1, boolean isSelected) throws BadLocationException {
+            if (p0 >= p1) return x;
+            Graphics2D g2 = (Graphics2D) g;
+            SyntaxHighlighter syntax = isSelected ? null : syntaxOf(getContainer());
+            if (syntax != null) return syntax.drawText(g2, x, y, p0, p1, this::drawRun);
+            g2.setColor(isSelected ? selected : unselected);
+            getDocument().getText(p0, p1 - p0, run);
+            return drawRun(g2, run, x, y, p0);
+        }
+
+        @Override
+        public Shape modelToView(int pos, Shape a, Position.Bias b) throws BadLocationException {
+            if (pos < 0 || pos > getDocument().getLength()) throw new BadLocationException("Position out of range", pos);
+            Rectangle alloc = a.getBounds();
+            int line = lines.lineOf(pos);
+            if (lines.rows(line) < 0 && measure(line)) preferenceChanged(null, false, true);
+            int start = lines.lineStart(line), end = lineEnd(line, start);
+            int n = breakLine(start, end);
+            int test = b == Position.Bias.Forward ? pos : Math.max(start, pos - 1);
+            int row = rowAt(start, end, n, test);
+            int p0 = rowStart(start, end, row);
+            float x = alloc.x;
+            if (pos > p0 && brokenFast) {
+                x = gridX(x, p0 - start, pos - start);
+            } else if (pos > p0) {
+                loadText(p0, pos);
+                brokenStart = -1;
+                x += Utilities.getTabbedTextWidth(text, metrics, x, this, p0);
+            }
+            return new Rectangle2D.Float(x, alloc.y + (float) (lines.rowOf(line) + row) * lineHeight, 1, lineHeight);
+        }
+
+        @Override
+        public int viewToModel(float fx, float fy, Shape a, Position.Bias[] bias) {
+            bias[0] = Position.Bias.Forward;
+            Rectangle alloc = a.getBounds();
+            if (fy < alloc.y) return 0;
+            int row = (int) ((fy - alloc.y) / lineHeight);
+            if (row >= lines.rowCount()) return getDocument().getLength();
+            int line = lines.lineAtRow(row);
+            row -= lines.rowOf(line);
+            if (lines.rows(line) < 0 && measure(line)) preferenceChanged(null, false, true);
+            int start = lines.lineStart(line), end = lineEnd(line, start);
+            int n = breakLine(start, end);
+            row = Math.min(row, n - 1);
+            int p0 = rowStart(start, end, row), p1 = rowEnd(start, end, n, row);
+            if (fx < alloc.x) return p0;
+            if (fx > alloc.x + alloc.width) return p1 - 1;
+            if (brokenFast) return Math.min(start + gridOffset(p0 - start, p1 - start, alloc.x, fx), p1 - 1);
+            loadText(p0, p1);
+            brokenStart = -1;
+            int offset = Utilities.getTabbedTextOffset(text, metrics, alloc.x, fx, this, p0, false);
+            return Math.min(p0 + offset, p1 - 1);
+        }
+
+        @Override
+        public void insertUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+            update(e, a, lines.lineOf(e.getOffset() + e.getLength()));
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+            update(e, a, lines.lineOf(e.getOffset()));
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+        }
+
+        /** The tab's LineIndex is notified before the views, so it already describes the new text. */
+        private void update(DocumentEvent e, Shape a, int last) {
+            brokenStart = -1;
+            int first = lines.lineOf(e.getOffset());
+            measureCursor = Math.min(measureCursor, first);
+            boolean changed = e.getChange(getElement()) != null;
+            if (last - first < SYNC_LINES) {
+                for (int line = first; line <= last; line++) changed |= measure(line);
+            } else {
+                schedule();
+            }
+            if (changed) {
+                preferenceChanged(null, false, true);
+                getContainer().repaint();
+            } else if (a != null) {
+                Rectangle alloc = a.getBounds();
+                getContainer().repaint(alloc.x, alloc.y + lines.rowOf(first) * lineHeight,
+                        alloc.width, Math.abs(lines.rows(first)) * lineHeight);
+            }
+        }
+    }
+
+    // -------------------- Editor sessions --------------------
+    /** Everything the editor keeps about one open tab. */
+    private static final class EditorSession {
+        // a bare panel until a tab reopened from the last session is first selected, then the editor's scroll pane
+        Component tab;
+        File file;
+        // where the registry indexed the file: its canonical path and file key (device and inode)
+        String path;
+        Object fileId;
+        EditorArea area;
+        EditHistory history;
+        boolean modified;
+        TabHeader header;
+        // when the tab was last selected or left, for picking tabs to hibernate
+        long lastUsed;
+        // set while the tab is hibernated or not opened yet, until it is loaded again; and while its snapshot is being written
+        Hibernation hibernation;
+        HibernateJob hibernating;
+        // set while the file streams in, and while a save is being written
+        DocumentLoader loader;
+        SaveJob save;
+        // line starts, for the caret status and Go To Line
+        LineIndex lines;
+        TextStats stats;
+        EditJournal journal;
+
+        EditorSession(Component tab) {
+            this.tab = tab;
+        }
+
+        /**
+         * Where a hibernated tab's text went, and what to put back around it. A tab reopened
+         * from the last session has no snapshot and is read from its file.
+         */
+        record Hibernation(File snapshot, int caret, int mark, Point scroll, String separator, long fileLength, long fileModified) {}
+    }
+
+    /**
+     * The open tabs' sessions, indexed by tab component, by canonical path and by file key,
+     * so finding a tab never scans the others. The file key also recognizes a file opened
+     * through a hard link or a second path; file systems without one fall back to the path.
+     */
+    private static final class SessionRegistry {
+        private final Map<Component, EditorSession> byTab = new HashMap<>();
+        private final Map<String, EditorSession> byPath = new HashMap<>();
+        private final Map<Object, EditorSession> byFileId = new HashMap<>();
+
+        EditorSession open(Component tab) {
+            EditorSession session = new EditorSession(tab);
+            byTab.put(tab, session);
+            return session;
+        }
+
+        EditorSession get(Component tab) {
+            return tab == null ? null : byTab.get(tab);
+        }
+
+        /** Records that the session's tab now shows {@code tab} instead. */
+        void retab(EditorSession session, Component tab) {
+            byTab.remove(session.tab);
+            session.tab = tab;
+            byTab.put(tab, session);
+        }
+
+        Collection<EditorSession> all() {
+            return byTab.values();
+        }
+
+        /** The session showing this file, if any. */
+        EditorSession find(File file) {
+            EditorSession session = byPath.get(canonicalPath(file));
+            if (session != null) return session;
+            Object id = fileId(file);
+            return id == null ? null : byFileId.get(id);
+        }
+
+        /** Points a session at a file (null for none), reading the file key if it exists yet. */
+        void setFile(EditorSession session, File file) {
+            unindex(session);
+            session.file = file;
+            if (file == null) return;
+            session.path = canonicalPath(file);
+            session.fileId = fileId(file);
+            byPath.put(session.path, session);
+            if (session.fileId != null) byFileId.put(session.fileId, session);
+        }
+
+        EditorSession remove(Component tab) {
+            EditorSession session = byTab.remove(tab);
+            if (session != null) unindex(session);
+            return session;
+        }
+
+        private void unindex(EditorSession session) {
+            if (session.path != null) byPath.remove(session.path, session);
+            if (session.fileId != null) byFileId.remove(session.fileId, session);
+            session.path = null;
+            session.fileId = null;
+        }
+
+        private static String canonicalPath(File file) {
+            try {
+                return file.getCanonicalPath();
+            } catch (IOException ex) {
+                return file.getAbsolutePath();
+            }
+        }
+
+        private static Object fileId(File file) {
+            try {
+                return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+            } catch (IOException | InvalidPathException ex) {
+                return null;
+            }
+        }
+    }
+
+    // -------------------- Edit history --------------------
+    /**
+     * Undo and redo for one tab. Changes are recorded from document events as plain data
+     * (offset, removed text, inserted text) instead of Swing's UndoableEdits, which are tied
+     * to the live document, so old history can leave the heap. Consecutive typing or deleting
+     * coalesces into one step per word, and a pause of {@link #TYPING_PAUSE_NANOS} also ends
+     * the step. Bulk edits such as Replace All are grouped explicitly. Text is held as piece
+     * table spans, which share the document's own arrays. When the steps in memory go over
+     * the budget, the oldest are appended to a spill file and read back once undo reaches them.
+     */
+    private static final class EditHistory implements DocumentListener {
+        private static final long TYPING_PAUSE_NANOS = 1_000_000_000L;
+        private static final long CHANGE_OVERHEAD = 48;
+        private static final long DISK_LIMIT = 256L * 1024 * 1024;
+
+        // what the newest step can still absorb
+        private static final int CLOSED = 0, TYPING = 1, DELETING = 2;
+
+        /** One change: {@code removed} was replaced with {@code inserted} at {@code offset}. */
+        private static final class Change {
+            int offset;
+            PieceTableDocument.Span[] removed, inserted;
+            int removedLen, insertedLen;
+
+            long bytes() {
+                return CHANGE_OVERHEAD + 2L * (removedLen + insertedLen);
+            }
+        }
+
+        /** What one undo reverts; {@code changes} is null while the step is spilled. */
+        private static final class Step {
+            List<Change> changes = new ArrayList<>();
+            long bytes;
+            long spillAt = -1;
+            int spillLength;
+        }
+
+        private final PieceTableDocument doc;
+        private final JTextComponent area;
+        private final long budget;
+        private final BooleanSupplier recording;
+        private final Runnable onChange;
+        // oldest first; spilled steps are always a prefix of undo
+        private final ArrayDeque<Step> undo = new ArrayDeque<>(), redo = new ArrayDeque<>();
+        private long memoryBytes, spilledBytes; // spilledBytes counts only steps still in the file
+        private File spillFile;
+        private RandomAccessFile spill;
+        private boolean spillFailed, applying;
+        private int openKind = CLOSED;
+        private long lastNanos;
+        private int compoundDepth;
+
+        /**
+         * @param recording whether document events are edits to record (false while a file loads)
+         * @param onChange  run after every recorded, undone or redone change
+         */
+        EditHistory(PieceTableDocument doc, JTextComponent area, long budget, BooleanSupplier recording, Runnable onChange) {
+            this.doc = doc;
+            this.area = area;
+            this.budget = budget;
+            this.recording = recording;
+            this.onChange = onChange;
+        }
+
+        boolean canUndo() {
+            return compoundDepth == 0 && !undo.isEmpty();
+        }
+
+        boolean canRedo() {
+            return compoundDepth == 0 && !redo.isEmpty();
+        }
+
+        /** Starts a group that undoes as one step until the matching {@link #endCompound()}. */
+        void beginCompound() {
+            if (compoundDepth++ > 0) return;
+            push(new Step());
+            openKind = CLOSED;
+        }
+
+        void endCompound() {
+            if (--compoundDepth > 0) return;
+            if (!undo.isEmpty() && undo.peekLast().changes.isEmpty()) undo.pollLast();
+        }
+
+        void undo() {
+            if (!canUndo()) return;
+            Step step = undo.pollLast();
+            if (!load(step)) return;
+            openKind = CLOSED;
+            List<Change> changes = step.changes;
+            for (int i = changes.size() - 1; i >= 0; i--) {
+                Change c = changes.get(i);
+                apply(c.offset, c.insertedLen, c.removed);
+            }
+            redo.addLast(step);
+            Change first = changes.get(0);
+            area.setCaretPosition(first.offset + first.removedLen);
+            onChange.run();
+        }
+
+        void redo() {
+            if (!canRedo()) return;
+            Step step = redo.pollLast();
+            openKind = CLOSED;
+            for (Change c : step.changes) apply(c.offset, c.removedLen, c.inserted);
+            undo.addLast(step);
+            Change last = step.changes.get(step.changes.size() - 1);
+            area.setCaretPosition(last.offset + last.insertedLen);
+            trim();
+            onChange.run();
+        }
+
+        /** Drops the spill file; the history is not used afterwards. */
+        void dispose() {
+            undo.clear();
+            redo.clear();
+            closeSpill();
+        }
+
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            if (applying || !recording.getAsBoolean()) return;
+            int offset = e.getOffset(), len = e.getLength();
+            record(offset, null, 0, doc.spans(offset, len), len);
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            if (applying || !recording.getAsBoolean()) return;
+            record(e.getOffset(), doc.removedSpans(), e.getLength(), null, 0);
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+        }
+
+        private void record(int offset, PieceTableDocument.Span[] removed, int removedLen,
+                            PieceTableDocument.Span[] inserted, int insertedLen) {
+            long now = System.nanoTime();
+            for (Step s : redo) memoryBytes -= s.bytes;
+            redo.clear();
+            Step top = undo.peekLast();
+            Change last = top == null || top.changes == null || top.changes.isEmpty() ? null : top.changes.get(top.changes.size() - 1);
+            boolean recent = now - lastNanos < TYPING_PAUSE_NANOS;
+            lastNanos = now;
+            long before = last == null ? 0 : last.bytes();
+            if (last != null && (compoundDepth > 0 || recent) && removedLen == 0 && last.insertedLen == 0 && offset == last.offset) {
+                // the text typed or pasted over a selection
+                last.inserted = inserted;
+                last.insertedLen = insertedLen;
+                openKind = insertedLen == 1 && compoundDepth == 0 ? TYPING : CLOSED;
+            } else if (last != null && compoundDepth == 0 && recent && openKind == TYPING && insertedLen == 1
+                    && offset == last.offset + last.insertedLen && !startsWord(last, inserted[0])) {
+                last.inserted = concat(last.inserted, inserted);
+                last.insertedLen++;
+            } else if (last != null && compoundDepth == 0 && recent && openKind == DELETING && removedLen == 1
+                    && (offset == last.offset - 1 || offset == last.offset)) {
+                // backspace grows the removal to the left, delete to the right
+                last.removed = offset < last.offset ? concat(removed, last.removed) : concat(last.removed, removed);
+                last.removedLen++;
+                last.offset = offset;
+            } else {
+                Change c = new Change();
+                c.offset = offset;
+                c.removed = removed;
+                c.removedLen = removedLen;
+                c.inserted = inserted;
+                c.insertedLen = insertedLen;
+                if (compoundDepth > 0) {
+                    top.changes.add(c);
+                } else {
+                    Step step = new Step();
+                    step.changes.add(c);
+                    push(step);
+                    top = step;
+                    openKind = insertedLen == 1 && removedLen == 0 ? TYPING : removedLen == 1 && insertedLen == 0 ? DELETING : CLOSED;
+                }
+                last = c;
+                before = 0;
+            }
+            long delta = last.bytes() - before;
+            top.bytes += delta;
+            memoryBytes += delta;
+            trim();
+            onChange.run();
+        }
+
+        private void push(Step step) {
+            undo.addLast(step);
+            memoryBytes += step.bytes;
+        }
+
+        /** A word starts when a non-space follows a space; that ends the typing step. */
+        private static boolean startsWord(Change last, PieceTableDocument.Span typed) {
+            PieceTableDocument.Span tail = last.inserted[last.inserted.length - 1];
+            char prev = tail.buf[tail.start + tail.len - 1];
+            return Character.isWhitespace(prev) && !Character.isWhitespace(typed.buf[typed.start]);
+        }
+
+        /** Joins span lists, merging neighbours that are adjacent in the same array (typing is). */
+        private static PieceTableDocument.Span[] concat(PieceTableDocument.Span[] a, PieceTableDocument.Span[] b) {
+            PieceTableDocument.Span x = a[a.length - 1], y = b[0];
+            if (x.buf == y.buf && x.start + x.len == y.start) {
+                PieceTableDocument.Span[] out = Arrays.copyOf(a, a.length + b.length - 1);
+                out[a.length - 1] = new PieceTableDocument.Span(x.buf, x.start, x.len + y.len);
+                System.arraycopy(b, 1, out, a.length, b.length - 1);
+                return out;
+            }
+            PieceTableDocument.Span[] out = Arrays.copyOf(a, a.length + b.length);
+            System.arraycopy(b, 0, out, a.length, b.length);
+            return out;
+        }
+
+        private void apply(int offset, int removeLen, PieceTableDocument.Span[] insert) {
+            applying = true;
+            try {
+                if (removeLen > 0) doc.remove(offset, removeLen);
+                if (insert != null) doc.insertString(offset, text(insert), null);
+            } catch (BadLocationException ex) {
+                throw new IllegalStateException(ex);
+            } finally {
+                applying = false;
+            }
+        }
+
+        private static String text(PieceTableDocument.Span[] spans) {
+            int len = 0;
+            for (PieceTableDocument.Span s : spans) len += s.len;
+            StringBuilder sb = new StringBuilder(len);
+            for (PieceTableDocument.Span s : spans) sb.append(s.buf, s.start, s.len);
+            return sb.toString();
+        }
+
+        /**
+         * Brings the steps in memory back under the budget by spilling the oldest, never the
+         * newest, which may still be growing. Past {@link #DISK_LIMIT} the oldest spilled steps
+         * are forgotten, and so are in-memory ones if the spill file cannot be written.
+         */
+        private void trim() {
+            if (memoryBytes <= budget) return;
+            long target = budget * 3 / 4;
+            Step newest = undo.peekLast();
+            for (Step s : undo) {
+                if (memoryBytes <= target || s == newest) break;
+                if (s.changes != null && !spillFailed) spill(s);
+            }
+            while (spillFailed && memoryBytes > target && undo.size() > 1) {
+                Step s = undo.pollFirst();
+                if (s.changes != null) memoryBytes -= s.bytes;
+                else spilledBytes -= s.spillLength;
+            }
+            while (spilledBytes > DISK_LIMIT && !undo.isEmpty() && undo.peekFirst().changes == null) {
+                spilledBytes -= undo.pollFirst().spillLength;
+            }
+        }
+
+        private void spill(Step step) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE, step.bytes));
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(step.changes.size());
+                for (Change c : step.changes) {
+                    out.writeInt(c.offset);
+                    writeSpans(out, c.removed, c.removedLen);
+                    writeSpans(out, c.inserted, c.insertedLen);
+                }
+                if (spill == null) {
+                    spillFile = File.createTempFile("advancednotepad-undo", ".bin");
+                    spillFile.deleteOnExit();
+                    spill = new RandomAccessFile(spillFile, "rw");
+                }
+                step.spillAt = spill.length();
+                step.spillLength = bytes.size();
+                spill.seek(step.spillAt);
+                spill.write(bytes.toByteArray());
+            } catch (IOException ex) {
+                spillFailed = true;
+                step.spillAt = -1;
+                return;
+            }
+            step.changes = null;
+            memoryBytes -= step.bytes;
+            spilledBytes += step.spillLength;
+        }
+
+        private static void writeSpans(DataOutputStream out, PieceTableDocument.Span[] spans, int len) throws IOException {
+            out.writeInt(spans == null ? -1 : len);
+            if (spans == null) return;
+            for (PieceTableDocument.Span s : spans) {
+                for (int i = s.start, end = s.start + s.len; i < end; i++) out.writeChar(s.buf[i]);
+            }
+        }
+
+        /** Reads a spilled step back in; if that fails, the spilled history is dropped. */
+        private boolean load(Step step) {
+            if (step.changes != null) return true;
+            List<Change> changes = new ArrayList<>();
+            try {
+                byte[] bytes = new byte[step.spillLength];
+                spill.seek(step.spillAt);
+                spill.readFully(bytes);
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+                for (int n = in.readInt(); n > 0; n--) {
+                    Change c = new Change();
+                    c.offset = in.readInt();
+                    c.removed = readSpans(in);
+                    c.removedLen = c.removed == null ? 0 : c.removed[0].len;
+                    c.inserted = readSpans(in);
+                    c.insertedLen = c.inserted == null ? 0 : c.inserted[0].len;
+                    changes.add(c);
+                }
+            } catch (IOException ex) {
+                undo.removeIf(s -> s.changes == null);
+                spilledBytes = 0;
+                closeSpill();
+                return false;
+            }
+            step.changes = changes;
+            step.spillAt = -1;
+            memoryBytes += step.bytes;
+            spilledBytes -= step.spillLength;
+            // once nothing spilled is left the file can start over
+            if (spilledBytes == 0) closeSpill();
+            return true;
+        }
+
+        private static PieceTableDocument.Span[] readSpans(DataInputStream in) throws IOException {
+            int len = in.readInt();
+            if (len < 0) return null;
+            char[] buf = new char[len];
+            for (int i = 0; i < len; i++) buf[i] = in.readChar();
+            return new PieceTableDocument.Span[] {new PieceTableDocument.Span(buf, 0, len)};
+        }
+
+        private void closeSpill() {
+            if (spill == null) return;
+            try {
+                spill.close();
+            } catch (IOException ignored) {
+            }
+            spillFile.delete();
+            spill = null;
+            spillFile = null;
+        }
+    }
+
+    // -------------------- Tab hibernation --------------------
+    /**
+     * Rough heap cost of a tab: two bytes per character of text, plus about 120 bytes per
+     * line for the line element PlainDocument keeps and the line index's entries.
+     */
+    private static long footprint(EditorSession session) {
+        if (session.area == null) return 0;
+        return 2L * session.area.getDocument().getLength() + 120L * session.lines.lineCount();
+    }
+
+    /**
+     * Hibernates the least recently used tabs until the open documents fit in
+     * {@link #TAB_MEMORY_BUDGET}. Only unmodified tabs of files that are not showing,
+     * loading or saving qualify, so nothing unsaved ever leaves memory.
+     */
+    private void hibernateIdleTabs() {
+        long total = 0;
+        List<EditorSession> idle = new ArrayList<>();
+        for (EditorSession session : sessions.all()) {
+            if (session.hibernating != null) continue; // about to be released
+            long size = footprint(session);
+            total += size;
+            if (size > 0 && session != selectedSession && !session.modified && session.file != null
+                    && session.loader == null && session.save == null) idle.add(session);
+        }
+        if (total <= TAB_MEMORY_BUDGET) return;
+        idle.sort(Comparator.comparingLong(session -> session.lastUsed));
+        for (EditorSession session : idle) {
+            if (total <= TAB_MEMORY_BUDGET) break;
+            total -= footprint(session);
+            session.hibernating = new HibernateJob(session);
+            session.hibernating.execute();
+        }
+    }
+
+    /**
+     * Brings a hibernated tab back by streaming its snapshot into a fresh editor, or opens a
+     * tab from the last session by reading its file. The tab keeps its hibernation state until
+     * the text is in, so it is saved with the session as it was meanwhile.
+     */
+    private void restore(EditorSession session) {
+        EditorSession.Hibernation h = session.hibernation;
+        File file = session.file;
+        if (!(session.tab instanceof JScrollPane)) {
+            int idx = tabs.indexOfComponent(session.tab);
+            JScrollPane sp = new JScrollPane();
+            sessions.retab(session, sp);
+            tabs.setComponentAt(idx, sp);
+        }
+        JScrollPane sp = (JScrollPane) session.tab;
+        if (h.snapshot() == null && file.length() > LARGE_FILE_THRESHOLD) {
+            session.hibernation = null;
+            try {
+                sp.setViewportView(new LargeFileView(new MappedTextModel(file)));
+            } catch (IOException ex) {
+                JOptionPane.showMessageDialog(this, "Error opening: " + ex.getMessage());
+                return;
+            }
+            if (session.header != null) session.header.setToolTipText("Large file - read-only, memory-mapped");
+            scrollBack(sp.getViewport(), h.scroll());
+            return;
+        }
+        // the journal can use the file as its base only if it still holds what the snapshot does
+        boolean unchanged = h.snapshot() == null || file.length() == h.fileLength() && file.lastModified() == h.fileModified();
+        EditorArea area = attachEditor(session, unchanged);
+        if (session.header != null) session.header.setToolTipText(null);
+        loadInto(session, file, h.snapshot());
+        session.loader.onLoaded(() -> {
+            session.hibernation = null;
+            if (h.snapshot() != null) h.snapshot().delete();
+            PieceTableDocument doc = (PieceTableDocument) area.getDocument();
+            if (h.separator() != null) doc.putProperty(DefaultEditorKit.EndOfLineStringProperty, h.separator());
+            if (!unchanged && session.journal != null) session.journal.compact(file, doc.snapshot());
+            int len = doc.getLength();
+            area.setCaretPosition(Math.min(h.mark(), len));
+            area.moveCaretPosition(Math.min(h.caret(), len));
+            scrollBack(sp.getViewport(), h.scroll());
+        });
+    }
+
+    /**
+     * Writes an idle tab's text to a GZIP snapshot on a worker thread, then lets go of its
+     * editor, document, undo history and journal, leaving a placeholder behind the header.
+     * The tab stays as it was if it is edited, selected or closed before the snapshot is in.
+     */
+    private class HibernateJob extends SwingWorker<File, Void> {
+        private final EditorSession session;
+        private final PieceTableDocument doc;
+        private final PieceTableDocument.Span[] spans;
+        private final long generation;
+
+        HibernateJob(EditorSession session) {
+            this.session = session;
+            this.doc = (PieceTableDocument) session.area.getDocument();
+            this.spans = doc.snapshot();
+            this.generation = doc.generation();
+        }
+
+        @Override
+        protected File doInBackground() throws IOException {
+            File snapshot = File.createTempFile("advancednotepad-tab", ".txt.gz");
+            snapshot.deleteOnExit();
+            try (Writer w = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(snapshot), 64 * 1024),
+                    StandardCharsets.UTF_8)) {
+                for (PieceTableDocument.Span span : spans) {
+                    if (isCancelled()) break;
+                    w.write(span.buf, span.start, span.len);
+                }
+            } catch (IOException ex) {
+                snapshot.delete();
+                throw ex;
+            }
+            return snapshot;
+        }
+
+        @Override
+        protected void done() {
+            if (session.hibernating == this) session.hibernating = null;
+            File snapshot;
+            try {
+                snapshot = get();
+            } catch (InterruptedException | ExecutionException | CancellationException ex) {
+                return; // stays in memory
+            }
+            if (sessions.get(session.tab) != session || session == selectedSession || session.modified
+                    || session.area == null || doc.generation() != generation) {
+                snapshot.delete();
+                return;
+            }
+            EditorArea area = session.area;
+            File file = session.file;
+            Object eol = doc.getProperty(DefaultEditorKit.EndOfLineStringProperty);
+            Caret caret = area.getCaret();
+            session.hibernation = new EditorSession.Hibernation(snapshot, caret.getDot(), caret.getMark(),
+                    ((JScrollPane) session.tab).getViewport().getViewPosition(),
+                    eol instanceof String str ? str : null, file.length(), file.lastModified());
+            if (caret instanceof AnimatedCaret animated) animated.dispose();
+            session.stats.dispose();
+            session.journal.discard();
+            session.area = null;
+            session.history.dispose();
+            session.history = null;
+            session.lines = null;
+            session.stats = null;
+            session.journal = null;
+            JLabel placeholder = new JLabel("Hibernated to save memory - select the tab to restore", SwingConstants.CENTER);
+            placeholder.setForeground(getFg());
+            ((JScrollPane) session.tab).setViewportView(placeholder);
+            if (session.header != null) session.header.setToolTipText("Hibernated to save memory");
+        }
+    }
+
+    // -------------------- Startup profile --------------------
+    /**
+     * Times from JVM start to each startup milestone, printed once the window first paints.
+     * Switched on with {@code --startup-profile}; otherwise every call returns at once.
+     */
+    private static final class StartupProfile {
+        private static List<String> names;
+        private static List<Long> times;
+        private static long origin; // nanoTime at JVM start
+
+        static void start() {
+            long now = System.nanoTime();
+            origin = now - ManagementFactory.getRuntimeMXBean().getUptime() * 1_000_000L;
+            names = new ArrayList<>();
+            times = new ArrayList<>();
+            record("main", now);
+        }
+
+        static void mark(String milestone) {
+            if (names != null) record(milestone, System.nanoTime());
+        }
+
+        /** Records the last milestone, prints the profile and stops recording. */
+        static void finish(String milestone) {
+            if (names == null) return;
+            mark(milestone);
+            StringBuilder sb = new StringBuilder("Startup profile (ms since JVM start, +ms since previous):\n");
+            long previous = origin;
+            for (int i = 0; i < names.size(); i++) {
+                long t = times.get(i);
+                sb.append(String.format("%9.1f %+9.1f  %s%n", (t - origin) / 1e6, (t - previous) / 1e6, names.get(i)));
+                previous = t;
+            }
+            System.out.print(sb);
+            names = null;
+            times = null;
+        }
+
+        // main records its milestones before it hands over to the EDT, which records the rest
+        private static void record(String milestone, long nanos) {
+            names.add(milestone);
+            times.add(nanos);
+        }
+    }
+
+    // -------------------- EDT watchdog --------------------
+    /**
+     * Measures how long events wait for the event dispatch thread. A daemon thread posts a
+     * heartbeat every {@link #BEAT_MS} and times how long it takes to run, and the delays go
+     * into a histogram with power-of-two millisecond buckets. If a heartbeat still has not run
+     * after the threshold, the EDT's stack is sampled, and sampled again each threshold the
+     * stall goes on. When the EDT is free again the stall is kept for the diagnostics dialog
+     * and appended to the stall log, together with the event that was being dispatched.
+     */
+    private static final class EdtWatchdog {
+        private static final long BEAT_MS = 200;
+        private static final int BUCKETS = 16;       // under 1 ms, 1-2 ms, 2-4 ms, ... 16 s and over
+        private static final int MAX_SAMPLES = 5;    // stack samples kept per stall
+        private static final int MAX_FRAMES = 40;    // frames shown per sample
+        private static final int MAX_STALLS = 50;    // stalls kept for the dialog
+        private static final long LOG_LIMIT = 1 << 20; // the log starts over past this size
+
+        /** A heartbeat that waited {@code millis}, from {@code at} (epoch millis). */
+        record Stall(long at, long millis, String trigger, List<StackTraceElement[]> samples) {}
+
+        /** Remembers which event the EDT is dispatching, so a stall can name what caused it. */
+        private static final class WatchedQueue extends EventQueue {
+            volatile AWTEvent current;
+
+            @Override
+            protected void dispatchEvent(AWTEvent event) {
+                // modal dialogs dispatch from inside another event, so restore the outer one
+                AWTEvent outer = current;
+                current = event;
+                try {
+                    super.dispatchEvent(event);
+                } finally {
+                    current = outer;
+                }
+            }
+        }
+
+        private final long thresholdMs;
+        private final File logFile;
+        private final WatchedQueue queue = new WatchedQueue();
+        private volatile Thread edt;
+        private volatile boolean running;
+        // written by the watchdog thread, read by the dialog on the EDT
+        private final long[] histogram = new long[BUCKETS];
+        private long beats, maxMillis;
+        private final ArrayDeque<Stall> stalls = new ArrayDeque<>();
+
+        EdtWatchdog(long thresholdMs, File logFile) {
+            this.thresholdMs = thresholdMs;
+            this.logFile = logFile;
+        }
+
+        void start() {
+            running = true;
+            Toolkit.getDefaultToolkit().getSystemEventQueue().push(queue);
+            Thread t = new Thread(this::watch, "edt-watchdog");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        private void watch() {
+            try {
+                while (true) {
+                    long posted = System.nanoTime();
+                    long[] ranAt = new long[1];
+                    CountDownLatch ran = new CountDownLatch(1);
+                    EventQueue.invokeLater(() -> {
+                        edt = Thread.currentThread();
+                        ranAt[0] = System.nanoTime();
+                        ran.countDown();
+                    });
+                    String trigger = null;
+                    List<StackTraceElement[]> samples = null;
+                    while (!ran.await(thresholdMs, TimeUnit.MILLISECONDS)) {
+                        if (samples == null) {
+                            trigger = describe(queue.current);
+                            samples = new ArrayList<>();
+                        }
+                        Thread t = edt;
+                        if (t != null && samples.size() < MAX_SAMPLES) samples.add(t.getStackTrace());
+                    }
+                    long millis = (ranAt[0] - posted) / 1_000_000;
+                    Stall stall = samples == null ? null
+                            : new Stall(System.currentTimeMillis() - (System.nanoTime() - posted) / 1_000_000, millis, trigger, samples);
+                    record(millis, stall);
+                    if (stall != null) log(stall);
+                    Thread.sleep(BEAT_MS);
                 }
+            } catch (InterruptedException ex) {
+                running = false;
+            }
+        }
+
+        private synchronized void record(long millis, Stall stall) {
+            beats++;
+            maxMillis = Math.max(maxMillis, millis);
+            histogram[millis < 1 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis))]++;
+            if (stall == null) return;
+            stalls.addFirst(stall);
+            if (stalls.size() > MAX_STALLS) stalls.removeLast();
+        }
+
+        private void log(Stall stall) {
+            if (logFile.length() > LOG_LIMIT) logFile.delete();
+            try (Writer w = new OutputStreamWriter(new FileOutputStream(logFile, true), StandardCharsets.UTF_8)) {
+                w.write(format(stall));
+            } catch (IOException ignored) {
+            }
+        }
+
+        /** The histogram and the stalls kept so far, as plain text. */
+        synchronized String report() {
+            StringBuilder sb = new StringBuilder();
+            if (!running) {
+                sb.append("The watchdog is off (-Dadvancednotepad.stallMs=0).\n");
+                return sb.toString();
+            }
+            sb.append(String.format("EDT latency over %,d heartbeats, max %,d ms, stalls reported from %,d ms%n%n",
+                    beats, maxMillis, thresholdMs));
+            long most = 1;
+            for (long n : histogram) most = Math.max(most, n);
+            for (int i = 0; i < BUCKETS; i++) {
+                String range = i == 0 ? "< 1 ms"
+                        : i == BUCKETS - 1 ? ">= " + (1L << (i - 1)) + " ms"
+                        : (1L << (i - 1)) + "-" + (1L << i) + " ms";
+                int bar = histogram[i] == 0 ? 0 : (int) Math.max(1, 40 * histogram[i] / most);
+                sb.append(String.format("%14s %,10d  %s%n", range, histogram[i], "#".repeat(bar)));
+            }
+            sb.append(String.format("%nRecent stalls, newest first (also in %s):%n", logFile));
+            if (stalls.isEmpty()) sb.append("none\n");
+            for (Stall stall : stalls) sb.append('\n').append(format(stall));
+            return sb.toString();
+        }
+
+        private static String format(Stall stall) {
+            StringBuilder sb = new StringBuilder(String.format("%tF %<tT  EDT stalled %,d ms during %s%n",
+                    stall.at(), stall.millis(), stall.trigger()));
+            for (int i = 0; i < stall.samples().size(); i++) {
+                StackTraceElement[] stack = stall.samples().get(i);
+                sb.append("  sample ").append(i + 1).append(":\n");
+                for (int j = 0; j < Math.min(stack.length, MAX_FRAMES); j++) sb.append("    at ").append(stack[j]).append('\n');
+                if (stack.length > MAX_FRAMES) sb.append("    ... ").append(stack.length - MAX_FRAMES).append(" more\n");
+            }
+            return sb.toString();
+        }
+
+        /** What an event was, in a few words; read off the watchdog thread, so only plain fields are touched. */
+        private static String describe(AWTEvent e) {
+            if (e == null) return "no event (EDT busy between events)";
+            Object source = e.getSource();
+            String where = source instanceof AbstractButton b && b.getText() != null && !b.getText().isEmpty()
+                    ? '"' + b.getText() + '"'
+                    : source == null ? "?" : source.getClass().getName();
+            if (e instanceof KeyEvent k) {
+                String mods = InputEvent.getModifiersExText(k.getModifiersEx());
+                String key = k.getID() == KeyEvent.KEY_TYPED ? "'" + k.getKeyChar() + "'" : KeyEvent.getKeyText(k.getKeyCode());
+                return "key " + (mods.isEmpty() ? "" : mods + "+") + key + " in " + where;
+            }
+            if (e instanceof MouseEvent m) {
+                return (m.getID() == MouseEvent.MOUSE_RELEASED || m.getID() == MouseEvent.MOUSE_CLICKED ? "click on " : "mouse over ") + where;
+            }
+            if (e instanceof InvocationEvent) {
+                // e.g. a Swing timer's tick or an invokeLater; the samples show which
+                String params = e.paramString();
+                int at = params.indexOf("runnable=");
+                return "task " + (at < 0 ? params : params.substring(at + 9, params.indexOf(',', at) < 0 ? params.length() : params.indexOf(',', at)));
+            }
+            if (e instanceof PaintEvent) return "painting " + where;
+            return e.getClass().getSimpleName() + " on " + where;
+        }
+    }
+
+    private void showDiagnosticsDialog() {
+        JDialog d = new JDialog(this, "Diagnostics", false);
+        d.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+        d.setSize(760, 560);
+        d.setLocationRelativeTo(this);
+        d.setLayout(new BorderLayout(10, 10));
+        d.getContentPane().setBackground(getBg());
+
+        JTextArea text = new JTextArea(WATCHDOG.report());
+        text.setEditable(false);
+        text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        text.setBackground(fieldBg);
+        text.setForeground(getFg());
+        text.setCaretPosition(0);
+        d.add(new JScrollPane(text), BorderLayout.CENTER);
+
+        JPanel bottom = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        bottom.setOpaque(false);
+        GradientButton refresh = new GradientButton("Refresh");
+        GradientButton save = new GradientButton("Save Report...");
+        GradientButton close = new GradientButton("Close");
+        save.setPreferredSize(new Dimension(140, 36));
+        bottom.add(refresh); bottom.add(save); bottom.add(close);
+        d.add(bottom, BorderLayout.SOUTH);
+
+        refresh.addActionListener(e -> {
+            text.setText(WATCHDOG.report());
+            text.setCaretPosition(0);
+        });
+        save.addActionListener(e -> {
+            JFileChooser chooser = new JFileChooser();
+            chooser.setSelectedFile(new File("advancednotepad-diagnostics.txt"));
+            if (chooser.showSaveDialog(d) != JFileChooser.APPROVE_OPTION) return;
+            try {
+                Files.writeString(chooser.getSelectedFile().toPath(), WATCHDOG.report(), StandardCharsets.UTF_8);
+            } catch (IOException ex) {
+                JOptionPane.showMessageDialog(d, "Could not save the report: " + ex.getMessage());
+            }
+        });
+        close.addActionListener(e -> d.dispose());
+        d.setVisible(true);
+    }
+
+    // -------------------- Palette --------------------
+    /**
+     * Every colour the UI paints with, for one theme. A palette never changes once built:
+     * switching themes swaps in another one, and whatever a component derived from a palette
+     * (see {@link Background}) stays valid for as long as that same palette is current.
+     * {@link #wash} and {@link #closeHover} hold one colour per step of the hover fades, with
+     * the fade's alpha already applied.
+     */
+    private static final class Palette {
+        static final Palette DARK = new Palette(true, new Properties());
+        static final Palette LIGHT = new Palette(false, new Properties());
+
+        final boolean dark;
+        final Color bg, fg, dimFg, strongFg, menuBg, panelBg, panelFg, fieldBg, listBg;
+        final Color titleBg, tabAreaTop, tabAreaBottom, tabAreaBorder, menuBarBg, menuBarEdge;
+        final Color buttonFg, buttonBg, buttonHoverBg, closeFg;
+        final Color tabTop, tabBottom, tabSelectedTop, tabSelectedBottom, tabShadow, tabFg;
+        final Color progressTrack, progressBar, match;
+        final Color[] wash = new Color[9], closeHover = new Color[11];
+        final Color[] tokens = new Color[TokenType.values().length];
+
+        /** The built-in dark or light palette with any colours in {@code props} swapped in. */
+        Palette(boolean dark, Properties props) {
+            this.dark = dark;
+            bg = color(props, "bg", dark ? new Color(18, 20, 23) : Color.WHITE);
+            fg = color(props, "fg", dark ? new Color(235, 235, 240) : new Color(34, 34, 34));
+            dimFg = color(props, "dimFg", fg.darker());
+            strongFg = color(props, "strongFg", dark ? Color.WHITE : new Color(20, 20, 20));
+            menuBg = color(props, "menuBg", dark ? new Color(30, 32, 36) : new Color(240, 240, 240));
+            panelBg = color(props, "panelBg", dark ? new Color(26, 28, 33) : Color.WHITE);
+            panelFg = color(props, "panelFg", dark ? new Color(235, 235, 240) : Color.BLACK);
+            fieldBg = color(props, "fieldBg", dark ? new Color(40, 42, 46) : Color.WHITE);
+            listBg = color(props, "listBg", dark ? new Color(30, 32, 36) : Color.WHITE);
+            titleBg = color(props, "titleBg", dark ? new Color(32, 34, 38) : new Color(245, 245, 245));
+            tabAreaTop = color(props, "tabAreaTop", dark ? new Color(28, 30, 34) : new Color(245, 245, 245));
+            tabAreaBottom = color(props, "tabAreaBottom", dark ? new Color(18, 20, 23) : Color.WHITE);
+            tabAreaBorder = color(props, "tabAreaBorder", dark ? new Color(80, 80, 80) : new Color(200, 200, 200));
+            menuBarBg = color(props, "menuBarBg", dark ? new Color(28, 30, 34) : new Color(240, 240, 240));
+            menuBarEdge = color(props, "menuBarEdge", dark ? new Color(0, 0, 0, 40) : new Color(0, 0, 0, 15));
+            buttonFg = color(props, "buttonFg", dark ? new Color(245, 245, 245) : new Color(25, 25, 25));
+            buttonBg = color(props, "buttonBg", dark ? new Color(70, 70, 80) : new Color(220, 220, 220));
+            buttonHoverBg = color(props, "buttonHoverBg", dark ? new Color(90, 90, 100) : new Color(200, 200, 200));
+            closeFg = color(props, "closeFg", new Color(200, 200, 200));
+            tabTop = color(props, "tabTop", dark ? new Color(45, 47, 52) : new Color(255, 255, 255));
+            tabBottom = color(props, "tabBottom", dark ? new Color(35, 37, 42) : new Color(245, 248, 255));
+            tabSelectedTop = color(props, "tabSelectedTop", dark ? new Color(78, 82, 110) : new Color(220, 230, 250));
+            tabSelectedBottom = color(props, "tabSelectedBottom", dark ? new Color(58, 62, 90) : new Color(200, 210, 230));
+            // drawn at 30% opacity
+            tabShadow = color(props, "tabShadow", dark ? new Color(0, 0, 0, 30) : new Color(0, 0, 0, 15));
+            tabFg = color(props, "tabFg", dark ? fg : new Color(110, 110, 110));
+            progressTrack = color(props, "progressTrack", dark ? new Color(255, 255, 255, 30) : new Color(0, 0, 0, 25));
+            progressBar = color(props, "progressBar", dark ? new Color(120, 170, 255) : new Color(60, 120, 220));
+            match = color(props, "match", dark ? new Color(255, 200, 60, 90) : new Color(255, 210, 0, 130));
+            Color hover = color(props, "hover", dark ? Color.WHITE : Color.BLACK);
+            Color close = color(props, "closeHover", new Color(220, 60, 60));
+            for (int i = 0; i < wash.length; i++) wash[i] = withAlpha(hover, Math.round(30 * 0.02f * i));
+            for (int i = 0; i < closeHover.length; i++) closeHover[i] = withAlpha(close, Math.round(255 * 0.1f * i));
+            for (TokenType t : TokenType.values()) {
+                tokens[t.ordinal()] = color(props, "token." + t.name().toLowerCase(Locale.ROOT), dark ? t.dark : t.light);
+            }
+        }
+
+        /** Reads {@code #RRGGBB} or {@code #AARRGGBB}; a malformed value throws IllegalArgumentException. */
+        private static Color color(Properties props, String key, Color fallback) {
+            String v = props.getProperty(key);
+            if (v == null) return fallback;
+            v = v.trim();
+            if (!v.startsWith("#") || (v.length() != 7 && v.length() != 9)) {
+                throw new IllegalArgumentException(key + ": expected #RRGGBB or #AARRGGBB, got " + v);
+            }
+            long argb = Long.parseLong(v.substring(1), 16);
+            return new Color((int) (v.length() == 7 ? 0xFF000000L | argb : argb), true);
+        }
+
+        private static Color withAlpha(Color c, int alpha) {
+            return new Color(c.getRed(), c.getGreen(), c.getBlue(), alpha);
+        }
+    }
+
+    /**
+     * A component's background, pre-rendered once per state and drawn as an image. Images
+     * are rendered at the screen's scale and shared through a small LRU of recent ones, so
+     * components of one kind and size (the toolbar buttons, say) render theirs once between
+     * them. Each component keeps the images it last drew; until its size, palette or screen
+     * changes, painting is a lookup and a blit.
+     */
+    private static final class Background {
+        /** Renders state {@code state} of a background of the given size. */
+        interface Painter {
+            void paint(Graphics2D g, Palette p, int w, int h, int state);
+        }
+
+        private record Key(Painter painter, Palette palette, int state, int w, int h, double scale) {}
+
+        private static final int SHARED_PIXELS = 4 * 1024 * 1024;
+        private static final Map<Key, BufferedImage> SHARED = new LinkedHashMap<>(64, 0.75f, true);
+        private static long sharedPixels;
+
+        private final Painter painter;
+        private final BufferedImage[] images;
+        private Palette palette;
+        private int width, height;
+        private GraphicsConfiguration config;
+        private double scale = 1;
+
+        Background(Painter painter, int states) {
+            this.painter = painter;
+            this.images = new BufferedImage[states];
+        }
+
+        void paint(Graphics g, Palette p, int w, int h, int state) {
+            if (w <= 0 || h <= 0) return;
+            GraphicsConfiguration gc = ((Graphics2D) g).getDeviceConfiguration();
+            if (p != palette || w != width || h != height || gc != config) {
+                if (gc != config) scale = gc.getDefaultTransform().getScaleX();
+                palette = p;
+                width = w;
+                height = h;
+                config = gc;
+                Arrays.fill(images, null);
+            }
+            BufferedImage img = images[state];
+            if (img == null) images[state] = img = shared(new Key(painter, p, state, w, h, scale));
+            g.drawImage(img, 0, 0, w, h, null);
+        }
+
+        private BufferedImage shared(Key key) {
+            BufferedImage img = SHARED.get(key);
+            if (img != null) return img;
+            int iw = (int) Math.ceil(key.w * key.scale), ih = (int) Math.ceil(key.h * key.scale);
+            img = config.createCompatibleImage(iw, ih, Transparency.TRANSLUCENT);
+            Graphics2D g = img.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.scale(key.scale, key.scale);
+            painter.paint(g, key.palette, key.w, key.h, key.state);
+            g.dispose();
+            SHARED.put(key, img);
+            sharedPixels += (long) iw * ih;
+            // components keep their own references, so evicting only stops sharing
+            for (Iterator<BufferedImage> it = SHARED.values().iterator(); sharedPixels > SHARED_PIXELS && it.hasNext(); ) {
+                BufferedImage old = it.next();
+                if (old == img) break;
+                sharedPixels -= (long) old.getWidth() * old.getHeight();
+                it.remove();
+            }
+            return img;
+        }
+    }
+
+    // -------------------- Theme helpers --------------------
+    private final Color bg = themed(p -> p.bg), fg = themed(p -> p.fg), menuBg = themed(p -> p.menuBg);
+    private final Color panelBg = themed(p -> p.panelBg), panelFg = themed(p -> p.panelFg);
+    private final Color fieldBg = themed(p -> p.fieldBg), strongFg = themed(p -> p.strongFg);
+
+    private Palette palette() { return palette; }
+    private Color getBg() { return bg; }
+    private Color getFg() { return fg; }
+    private Color getMenuBg() { return menuBg; }
+    private Color themed(Function<Palette, Color> role) { return new ThemeColor(role); }
+    private void applyTheme(JComponent comp) {
+        if (comp == null) return;
+        comp.setBackground(panelBg);
+        comp.setForeground(panelFg);
+        for (Component c : comp.getComponents()) {
+            if (c instanceof JComponent jc) {
+                jc.setBackground(panelBg);
+                jc.setForeground(panelFg);
+                applyTheme(jc);
             }
         }
-        for (Map.Entry<Component, TabHeader> e : headerMap.entrySet()) {
-            TabHeader h = e.getValue();
-            boolean sel = tabs.getSelectedComponent() == e.getKey();
-            h.setSelected(sel);
+    }
+
+    /**
+     * A colour that is looked up in the current palette each time it is read. Components
+     * are given these once, so switching palettes restyles them on their next paint
+     * without touching any of them.
+     */
+    private final class ThemeColor extends Color {
+        private final Function<Palette, Color> role;
+
+        ThemeColor(Function<Palette, Color> role) {
+            super(0, true);
+            this.role = role;
+        }
+
+        @Override
+        public int getRGB() {
+            return role.apply(palette).getRGB();
+        }
+
+        @Override
+        public int hashCode() {
+            return getRGB();
+        }
+    }
+
+    /** Moves to the next theme: the built-in dark and light ones, then any user themes. */
+    private void toggleTheme() {
+        if (!themesLoaded) loadThemes();
+        palette = themes.get((themes.indexOf(palette) + 1) % themes.size());
+        // every colour is read from the palette at paint time, so a repaint restyles everything
+        for (Window w : Window.getWindows()) w.repaint();
+    }
+
+    /**
+     * Adds each {@code *.properties} file in {@link #themeDir} as a theme. A theme starts
+     * from the built-in one named by {@code base} ({@code dark} or {@code light}) and
+     * overrides colours by {@link Palette} field name, e.g. {@code bg=#1E1E2E} or
+     * {@code token.keyword=#CBA6F7}; {@code #AARRGGBB} sets an alpha.
+     */
+    private void loadThemes() {
+        themesLoaded = true;
+        File[] files = themeDir.listFiles((dir, name) -> name.endsWith(".properties"));
+        if (files == null) return;
+        Arrays.sort(files);
+        for (File f : files) {
+            Properties props = new Properties();
+            try (Reader r = new FileReader(f, StandardCharsets.UTF_8)) {
+                props.load(r);
+                themes.add(new Palette(!"light".equalsIgnoreCase(props.getProperty("base", "dark").trim()), props));
+            } catch (IOException | IllegalArgumentException ignored) {
+                // an unreadable theme or a malformed colour leaves the theme out
+            }
         }
-        SwingUtilities.updateComponentTreeUI(this);
     }
 
     // -------------------- Utilities --------------------
     public static void main(String[] args) {
+        if (Arrays.asList(args).contains("--startup-profile")) StartupProfile.start();
         try { UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName()); } catch (Exception ignored) {}
+        StartupProfile.mark("look and feel set");
+        if (STALL_THRESHOLD_MS > 0) WATCHDOG.start();
         SwingUtilities.invokeLater(() -> new AdvancedNotepad());
     }
 }
\ No newline at end of file